@@ -0,0 +1,79 @@
+package com.shealth2fit;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Upload batch size tuned from the outcome of each insert, additive increase while inserts are fast,
+ * multiplicative decrease when they are slow or fail. The tuned size is kept between syncs.
+ * One batcher is shared by every sync job and the outbox retries, so they all tune and save the same size.
+ */
+class AdaptiveBatcher {
+  private static final String TAG = "AdaptiveBatcher";
+  // One day of bins, so a day never spans more than two batches
+  static final int MIN_BATCH_SIZE = 144;
+  // The History API rejects inserts of about 1000 data points and more, larger batches could never succeed
+  static final int MAX_BATCH_SIZE = 990;
+  // Four days of bins, room to grow on a good connection before reaching the insert limit
+  private static final int DEFAULT_BATCH_SIZE = 4 * 144;
+  private static final int BATCH_SIZE_STEP = 144;
+  private static final long TARGET_LATENCY = TimeUnit.SECONDS.toMillis(5);
+  private static final String PREFERENCES_NAME = "adaptive_batcher";
+  private static final String KEY_BATCH_SIZE = "batch_size";
+
+  private static AdaptiveBatcher sInstance;
+
+  private final SharedPreferences mPreferences;
+  private int mBatchSize;
+
+  private AdaptiveBatcher(Context context) {
+    mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    mBatchSize = clamp(mPreferences.getInt(KEY_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+  }
+
+  static synchronized AdaptiveBatcher getInstance(Context context) {
+    if (sInstance == null) {
+      sInstance = new AdaptiveBatcher(context.getApplicationContext());
+    }
+    return sInstance;
+  }
+
+  synchronized int getBatchSize() {
+    return mBatchSize;
+  }
+
+  /*
+   * Batches submitted before the last decrease are larger than the current size, their failure
+   * was already accounted for, so a burst of failing in flight batches only shrinks the size once.
+   */
+  synchronized void onBatchCompleted(int batchSize, long latencyMillis, boolean isSuccessful) {
+    int previousBatchSize = mBatchSize;
+    if (!isSuccessful) {
+      if (batchSize >= mBatchSize) {
+        mBatchSize = clamp(mBatchSize / 2);
+      }
+    } else if (latencyMillis > TARGET_LATENCY) {
+      if (batchSize >= mBatchSize) {
+        mBatchSize = clamp(mBatchSize * 3 / 4);
+      }
+    } else if (batchSize >= mBatchSize) {
+      // Only full sized batches show the current size is fine, the flushed remainders are smaller
+      mBatchSize = clamp(mBatchSize + BATCH_SIZE_STEP);
+    }
+
+    if (mBatchSize != previousBatchSize) {
+      Log.i(TAG, "Batch size " + previousBatchSize + " -> " + mBatchSize + ", latency " + latencyMillis + "ms");
+    }
+  }
+
+  synchronized void save() {
+    mPreferences.edit().putInt(KEY_BATCH_SIZE, mBatchSize).apply();
+  }
+
+  private static int clamp(int batchSize) {
+    return Math.max(MIN_BATCH_SIZE, Math.min(MAX_BATCH_SIZE, batchSize));
+  }
+}
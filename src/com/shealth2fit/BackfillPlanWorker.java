@@ -0,0 +1,148 @@
+package com.shealth2fit;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Constraints;
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkContinuation;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.shealth2fit.util.DateUtil;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+import static com.shealth2fit.SyncWorker.DATE_END_TIMESTAMP_KEY;
+import static com.shealth2fit.SyncWorker.DATE_START_TIMESTAMP_KEY;
+
+/*
+ * Plans the import of the whole Samsung Health history. The history, from the first day with steps
+ * up to today, is split into calendar month chunks that are synced by BackfillWorker.
+ * The chunks are spread newest first over a few unique work chains, the lanes, so that many chunks
+ * sync in parallel and every lane picks up where it stopped after the process is killed.
+ * Today is left to the periodic sync.
+ */
+public class BackfillPlanWorker extends Worker {
+  static final String BACKFILL_TAG = "backfill";
+  static final String PARALLELISM_KEY = "backfill_parallelism";
+  static final String REQUIRES_CHARGING_KEY = "backfill_requires_charging";
+  static final String REQUIRES_UNMETERED_KEY = "backfill_requires_unmetered";
+  private static final String TAG = "BackfillPlanWorker";
+  private static final String PLAN_WORK_NAME = "backfill_plan";
+  private static final String LANE_WORK_NAME = "backfill_lane_";
+  private static final int DEFAULT_PARALLELISM = 2;
+  private static final int MAX_PARALLELISM = 4;
+
+  private final Context mContext;
+
+  public BackfillPlanWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+    super(context, workerParams);
+    mContext = getApplicationContext();
+  }
+
+  // Starts the backfill, a backfill that is still being planned is kept
+  static void start(Context context, int parallelism, boolean requiresCharging, boolean requiresUnmetered) {
+    Data inputData = new Data.Builder()
+     .putInt(PARALLELISM_KEY, parallelism)
+     .putBoolean(REQUIRES_CHARGING_KEY, requiresCharging)
+     .putBoolean(REQUIRES_UNMETERED_KEY, requiresUnmetered)
+     .build();
+
+    OneTimeWorkRequest planRequest = new OneTimeWorkRequest.Builder(BackfillPlanWorker.class)
+     .setInputData(inputData)
+     .addTag(BACKFILL_TAG)
+     .build();
+
+    WorkManager.getInstance(context).enqueueUniqueWork(PLAN_WORK_NAME, ExistingWorkPolicy.KEEP, planRequest);
+  }
+
+  @NonNull
+  @Override
+  public Result doWork() {
+    long earliestDayTime;
+    HealthConnectionManager connectionManager = BaseApplication.getHealthConnectionManager();
+    HealthConnectionManager.Lease storeLease = connectionManager.acquire();
+    try {
+      StepCountReader reader = new StepCountReader(storeLease.awaitConnected().get(), null);
+      earliestDayTime = reader.readEarliestDayTime();
+    } catch (Exception e) {
+      Log.e(TAG, "doWork: could not read the start of the history", e);
+      return Result.retry();
+    } finally {
+      storeLease.release();
+    }
+
+    long todayStartTime = DateUtil.getTodayStartUtcTime();
+    if (earliestDayTime < 0 || earliestDayTime >= todayStartTime) {
+      Log.i(TAG, "doWork: no history to import");
+      return Result.success();
+    }
+
+    List<long[]> chunks = getMonthChunks(earliestDayTime, todayStartTime);
+    int parallelism = Math.max(1, Math.min(MAX_PARALLELISM, getInputData().getInt(PARALLELISM_KEY, DEFAULT_PARALLELISM)));
+    Log.i(TAG, "doWork: " + chunks.size() + " chunks over " + parallelism + " lanes");
+
+    Constraints constraints = new Constraints.Builder()
+     .setRequiredNetworkType(getInputData().getBoolean(REQUIRES_UNMETERED_KEY, false)
+      ? NetworkType.UNMETERED : NetworkType.CONNECTED)
+     .setRequiresCharging(getInputData().getBoolean(REQUIRES_CHARGING_KEY, false))
+     .setRequiresBatteryNotLow(true)
+     .build();
+
+    WorkManager workManager = WorkManager.getInstance(mContext);
+    for (int lane = 0; lane < parallelism && lane < chunks.size(); lane++) {
+      WorkContinuation continuation = null;
+      // Round robin keeps every lane on recent months first
+      for (int i = lane; i < chunks.size(); i += parallelism) {
+        OneTimeWorkRequest chunkRequest = getChunkRequest(chunks.get(i), constraints);
+        continuation = continuation == null
+         ? workManager.beginUniqueWork(LANE_WORK_NAME + lane, ExistingWorkPolicy.KEEP, chunkRequest)
+         : continuation.then(chunkRequest);
+      }
+      continuation.enqueue();
+    }
+    return Result.success();
+  }
+
+  private static OneTimeWorkRequest getChunkRequest(long[] chunk, Constraints constraints) {
+    Data inputData = new Data.Builder()
+     .putLong(DATE_START_TIMESTAMP_KEY, chunk[0])
+     .putLong(DATE_END_TIMESTAMP_KEY, chunk[1])
+     .build();
+
+    return new OneTimeWorkRequest.Builder(BackfillWorker.class)
+     .setInputData(inputData)
+     .setConstraints(constraints)
+     .addTag(BACKFILL_TAG)
+     .build();
+  }
+
+  // UTC calendar months covering [startTime, endTime), newest first, the first and last one clipped to the range
+  static List<long[]> getMonthChunks(long startTime, long endTime) {
+    Calendar month = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    month.setTimeInMillis(startTime);
+    month.set(Calendar.DAY_OF_MONTH, 1);
+    month.set(Calendar.HOUR_OF_DAY, 0);
+    month.set(Calendar.MINUTE, 0);
+    month.set(Calendar.SECOND, 0);
+    month.set(Calendar.MILLISECOND, 0);
+
+    List<long[]> chunks = new ArrayList<>();
+    while (month.getTimeInMillis() < endTime) {
+      long chunkStart = Math.max(startTime, month.getTimeInMillis());
+      month.add(Calendar.MONTH, 1);
+      long chunkEnd = Math.min(endTime, month.getTimeInMillis());
+      chunks.add(0, new long[]{chunkStart, chunkEnd});
+    }
+    return chunks;
+  }
+}
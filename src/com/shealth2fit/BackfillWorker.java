@@ -0,0 +1,79 @@
+package com.shealth2fit;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Data;
+import androidx.work.ForegroundInfo;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.shealth2fit.util.NotificationUtil;
+
+import static com.shealth2fit.SyncWorker.DATE_END_TIMESTAMP_KEY;
+import static com.shealth2fit.SyncWorker.DATE_START_TIMESTAMP_KEY;
+import static com.shealth2fit.util.NotificationUtil.BACKFILL_NOTIFICATION_ID;
+
+/*
+ * Syncs one chunk of a backfill planned by BackfillPlanWorker and publishes its progress as work progress.
+ * The chunk runs as foreground work, so Android does not stop a long import halfway through a month.
+ * A retried or restarted chunk only reads the days the sync ledger still has pending.
+ */
+public class BackfillWorker extends Worker {
+  static final String DAYS_READ_KEY = "backfill_days_read";
+  static final String TOTAL_DAYS_KEY = "backfill_total_days";
+  static final String BINS_UPLOADED_KEY = "backfill_bins_uploaded";
+  private static final String TAG = "BackfillWorker";
+  // A chunk still failing after this many runs is skipped so the rest of its lane goes on, its days stay pending
+  private static final int MAX_RUN_ATTEMPTS = 5;
+
+  private final Context mContext;
+
+  public BackfillWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+    super(context, workerParams);
+    mContext = getApplicationContext();
+  }
+
+  @NonNull
+  @Override
+  public Result doWork() {
+    NotificationUtil.createNotificationChannel(mContext);
+
+    long startTime = getInputData().getLong(DATE_START_TIMESTAMP_KEY, 0);
+    long endTime = getInputData().getLong(DATE_END_TIMESTAMP_KEY, 0);
+
+    setForegroundAsync(new ForegroundInfo(BACKFILL_NOTIFICATION_ID, NotificationUtil.buildProgressNotification(
+     mContext, mContext.getString(R.string.backfill_progress_title), "", 0, 0)));
+
+    SyncData syncData = new SyncData(mContext, startTime, endTime);
+    syncData.setHasProgressNotification(true);
+    syncData.setProgressListener(progress -> {
+      setProgressAsync(new Data.Builder()
+       .putLong(DATE_START_TIMESTAMP_KEY, progress.startTime)
+       .putLong(DATE_END_TIMESTAMP_KEY, progress.endTime)
+       .putInt(DAYS_READ_KEY, progress.daysRead)
+       .putInt(TOTAL_DAYS_KEY, progress.totalDays)
+       .putInt(BINS_UPLOADED_KEY, progress.binsUploaded)
+       .build());
+      setForegroundAsync(new ForegroundInfo(BACKFILL_NOTIFICATION_ID, NotificationUtil.buildProgressNotification(
+       mContext, mContext.getString(R.string.backfill_progress_title), progress.getSummary(mContext),
+       progress.totalDays, progress.daysRead)));
+    });
+
+    SyncData.Outcome outcome;
+    try {
+      outcome = SyncEngine.getInstance().submit(syncData).get();
+    } catch (Exception e) {
+      Log.e(TAG, "doWork: chunk sync failed", e);
+      outcome = SyncData.Outcome.FAILED;
+    }
+
+    // Queued batches are left to OutboxWorker, the chunk itself is done
+    if (outcome != SyncData.Outcome.FAILED) {
+      return Result.success();
+    }
+    // A failed chunk would fail every later chunk of the chain, so it gives up with success
+    return getRunAttemptCount() + 1 < MAX_RUN_ATTEMPTS ? Result.retry() : Result.success();
+  }
+}
@@ -10,14 +10,20 @@ import java.util.concurrent.Executors;
 
 public class BaseApplication extends Application implements Configuration.Provider {
   private static Context context;
+  private static HealthConnectionManager healthConnectionManager;
 
   public static Context getAppContext() {
     return BaseApplication.context;
   }
 
+  static HealthConnectionManager getHealthConnectionManager() {
+    return BaseApplication.healthConnectionManager;
+  }
+
   public void onCreate() {
     super.onCreate();
     BaseApplication.context = getApplicationContext();
+    BaseApplication.healthConnectionManager = new HealthConnectionManager(BaseApplication.context);
   }
 
   @NonNull
@@ -0,0 +1,80 @@
+package com.shealth2fit;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.shealth2fit.util.DateUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.TimeZone;
+import java.util.zip.GZIPInputStream;
+
+import static com.shealth2fit.StepCountReader.BIN_MILLIS;
+import static com.shealth2fit.StepCountReader.ONE_DAY;
+
+/*
+ * Decodes the binning_data blob of a daily trend, a gzipped JSON array with one
+ * {"count", "calorie", "distance"} object per 10 minutes of the local day.
+ * The array is streamed straight into a StepBinSeries, no object is made per bin.
+ */
+final class BinningDataDecoder {
+  private static final String FIELD_COUNT = "count";
+  private static final String FIELD_CALORIE = "calorie";
+  private static final String FIELD_DISTANCE = "distance";
+
+  private BinningDataDecoder() {
+  }
+
+  /*
+   * Bin i starts at the wall clock time i * 10 minutes after local midnight of the day whose UTC start is dayTime.
+   * On the 23 and 25 hour days of a DST transition the bins keep their wall clock times, a bin skipped
+   * by the transition moves forward with it and a repeated one takes its later occurrence. Empty bins are skipped.
+   */
+  static StepBinSeries decode(byte[] zip, long dayTime, TimeZone timeZone) throws IOException {
+    StepBinSeries binSeries = new StepBinSeries((int) (ONE_DAY / BIN_MILLIS));
+    if (zip == null || zip.length == 0) {
+      return binSeries;
+    }
+
+    long dayStartTime = DateUtil.localToUTC(dayTime, timeZone);
+    boolean isRegularDay = DateUtil.localToUTC(dayTime + ONE_DAY, timeZone) - dayStartTime == ONE_DAY;
+
+    try (JsonReader reader = new JsonReader(new InputStreamReader(
+     new GZIPInputStream(new ByteArrayInputStream(zip)), StandardCharsets.UTF_8))) {
+      reader.beginArray();
+      for (int i = 0; reader.hasNext(); i++) {
+        int count = 0;
+        float calorie = 0;
+        float distance = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+          String name = reader.nextName();
+          if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+          } else if (FIELD_COUNT.equals(name)) {
+            count = reader.nextInt();
+          } else if (FIELD_CALORIE.equals(name)) {
+            calorie = (float) reader.nextDouble();
+          } else if (FIELD_DISTANCE.equals(name)) {
+            distance = (float) reader.nextDouble();
+          } else {
+            reader.skipValue();
+          }
+        }
+        reader.endObject();
+
+        if (count != 0) {
+          long binStartTime = isRegularDay
+           ? dayStartTime + i * BIN_MILLIS
+           : DateUtil.localToUTC(dayTime + i * BIN_MILLIS, timeZone);
+          binSeries.add(binStartTime, count, calorie, distance);
+        }
+      }
+      reader.endArray();
+    }
+    return binSeries;
+  }
+}
@@ -0,0 +1,67 @@
+package com.shealth2fit;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.shealth2fit.StepCountReader.ONE_DAY;
+
+/*
+ * Process wide leases on days, so two sync jobs never read and upload the same day at the same time.
+ * The table is a concurrent map keyed by day_time, jobs only contend on the days they have in common.
+ * The lease of a day completes with the outcome of the job that held it, true when that job succeeded.
+ */
+class DayLeaseTable {
+  private static final DayLeaseTable sInstance = new DayLeaseTable();
+
+  private final ConcurrentHashMap<Long, SettableFuture<Boolean>> mLeases = new ConcurrentHashMap<>();
+
+  static DayLeaseTable getInstance() {
+    return sInstance;
+  }
+
+  // Claims every free day of [startTime, endTime), the days held by other jobs are returned with their lease
+  Claim claim(long startTime, long endTime) {
+    Claim claim = new Claim();
+    for (long dayTime = startTime; dayTime < endTime; dayTime += ONE_DAY) {
+      SettableFuture<Boolean> lease = SettableFuture.create();
+      SettableFuture<Boolean> heldLease = mLeases.putIfAbsent(dayTime, lease);
+      if (heldLease == null) {
+        claim.mOwnedDays.add(dayTime);
+        claim.mOwnedLeases.add(lease);
+      } else {
+        claim.mHeldDays.add(dayTime, dayTime + ONE_DAY);
+        claim.mHeldLeases.add(heldLease);
+      }
+    }
+    return claim;
+  }
+
+  class Claim {
+    private final List<Long> mOwnedDays = new ArrayList<>();
+    private final List<SettableFuture<Boolean>> mOwnedLeases = new ArrayList<>();
+    private final DayRangeSet mHeldDays = new DayRangeSet();
+    private final List<ListenableFuture<Boolean>> mHeldLeases = new ArrayList<>();
+
+    // Days another job is syncing, to leave out of this job
+    DayRangeSet getHeldDays() {
+      return mHeldDays;
+    }
+
+    // Leases of the held days, complete once the jobs holding them are done
+    List<ListenableFuture<Boolean>> getHeldLeases() {
+      return mHeldLeases;
+    }
+
+    // Frees the owned days, jobs waiting on them get the outcome of this job
+    void release(boolean isSuccessful) {
+      for (int i = 0; i < mOwnedDays.size(); i++) {
+        mLeases.remove(mOwnedDays.get(i), mOwnedLeases.get(i));
+        mOwnedLeases.get(i).set(isSuccessful);
+      }
+    }
+  }
+}
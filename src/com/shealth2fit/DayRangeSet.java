@@ -0,0 +1,79 @@
+package com.shealth2fit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/* Set of [start, end) time ranges kept as the minimal sorted list of disjoint, non adjacent ranges */
+class DayRangeSet {
+  private final List<long[]> mRanges = new ArrayList<>();
+
+  boolean isEmpty() {
+    return mRanges.isEmpty();
+  }
+
+  // Copies of the ranges in time order
+  List<long[]> getRanges() {
+    List<long[]> ranges = new ArrayList<>(mRanges.size());
+    for (long[] range : mRanges) {
+      ranges.add(new long[]{range[0], range[1]});
+    }
+    return ranges;
+  }
+
+  // Merges the range with every range it overlaps or touches
+  void add(long startTime, long endTime) {
+    if (startTime >= endTime) {
+      return;
+    }
+
+    int i = 0;
+    while (i < mRanges.size() && mRanges.get(i)[1] < startTime) {
+      i++;
+    }
+    while (i < mRanges.size() && mRanges.get(i)[0] <= endTime) {
+      long[] range = mRanges.remove(i);
+      startTime = Math.min(startTime, range[0]);
+      endTime = Math.max(endTime, range[1]);
+    }
+    mRanges.add(i, new long[]{startTime, endTime});
+  }
+
+  void addAll(DayRangeSet other) {
+    for (long[] range : other.mRanges) {
+      add(range[0], range[1]);
+    }
+  }
+
+  void remove(long startTime, long endTime) {
+    if (startTime >= endTime) {
+      return;
+    }
+
+    for (int i = 0; i < mRanges.size(); i++) {
+      long[] range = mRanges.get(i);
+      if (range[1] <= startTime || range[0] >= endTime) {
+        continue;
+      }
+
+      mRanges.remove(i);
+      if (range[1] > endTime) {
+        mRanges.add(i, new long[]{endTime, range[1]});
+      }
+      if (range[0] < startTime) {
+        mRanges.add(i, new long[]{range[0], startTime});
+        i++;
+      }
+      i--;
+    }
+  }
+
+  void removeAll(DayRangeSet other) {
+    for (long[] range : other.mRanges) {
+      remove(range[0], range[1]);
+    }
+  }
+
+  void clear() {
+    mRanges.clear();
+  }
+}
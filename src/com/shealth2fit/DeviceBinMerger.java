@@ -0,0 +1,125 @@
+package com.shealth2fit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Combines the 10 minute series of several devices into one series.
+ * Every device series must be sorted by time, bins of different devices with the same
+ * start time are resolved with the configured policy.
+ */
+class DeviceBinMerger {
+
+  enum Policy {
+    // Bin of the device with the most steps, for devices recording the same walk
+    MAX,
+    // Sum of every device, for devices recording different activities
+    SUM,
+    // Bin of the first device with steps, in the order of the device priority list
+    DEVICE_PRIORITY
+  }
+
+  private final Policy mPolicy;
+  private final List<String> mDevicePriority;
+
+  DeviceBinMerger(Policy policy) {
+    this(policy, Collections.emptyList());
+  }
+
+  // Devices missing from devicePriority rank after the listed ones, by total step count
+  DeviceBinMerger(Policy policy, List<String> devicePriority) {
+    mPolicy = policy;
+    mDevicePriority = devicePriority;
+  }
+
+  StepBinSeries merge(Map<String, StepBinSeries> deviceBinSeries) {
+    StepBinSeries[] series = rankDevices(deviceBinSeries);
+    if (series.length == 1) {
+      return series[0];
+    }
+
+    // Sorted merge in rank order, the bins of one start time end up next to each other, best ranked device first
+    StepBinSeries interleaved = series[0];
+    for (int d = 1; d < series.length; d++) {
+      interleaved = StepBinSeries.merge(interleaved, series[d]);
+    }
+    StepBinSeries merged = new StepBinSeries(Math.max(1, interleaved.size()));
+
+    // Each run of bins with the same start time is resolved into one bin
+    int i = 0;
+    while (i < interleaved.size()) {
+      long binTime = interleaved.getTime(i);
+      int count = 0;
+      float calorie = 0;
+      float distance = 0;
+      boolean isResolved = false;
+      for (; i < interleaved.size() && interleaved.getTime(i) == binTime; i++) {
+        int deviceCount = interleaved.getCount(i);
+
+        switch (mPolicy) {
+          case SUM:
+            count += deviceCount;
+            calorie += interleaved.getCalorie(i);
+            distance += interleaved.getDistance(i);
+            break;
+          case MAX:
+            if (!isResolved || deviceCount > count) {
+              count = deviceCount;
+              calorie = interleaved.getCalorie(i);
+              distance = interleaved.getDistance(i);
+              isResolved = true;
+            }
+            break;
+          case DEVICE_PRIORITY:
+            if (!isResolved && deviceCount > 0) {
+              count = deviceCount;
+              calorie = interleaved.getCalorie(i);
+              distance = interleaved.getDistance(i);
+              isResolved = true;
+            }
+            break;
+        }
+      }
+
+      if (count > 0) {
+        merged.add(binTime, count, calorie, distance);
+      }
+    }
+
+    return merged;
+  }
+
+  private StepBinSeries[] rankDevices(Map<String, StepBinSeries> deviceBinSeries) {
+    List<Map.Entry<String, StepBinSeries>> devices = new ArrayList<>(deviceBinSeries.entrySet());
+    int[] totalCounts = new int[devices.size()];
+    Integer[] order = new Integer[devices.size()];
+    for (int d = 0; d < devices.size(); d++) {
+      totalCounts[d] = devices.get(d).getValue().getTotalCount();
+      order[d] = d;
+    }
+
+    Arrays.sort(order, (d1, d2) -> {
+      int priority1 = priorityOf(devices.get(d1).getKey());
+      int priority2 = priorityOf(devices.get(d2).getKey());
+      if (priority1 != priority2) {
+        return Integer.compare(priority1, priority2);
+      }
+      return Integer.compare(totalCounts[d2], totalCounts[d1]);
+    });
+
+    StepBinSeries[] series = new StepBinSeries[Math.max(1, devices.size())];
+    series[0] = new StepBinSeries(0);
+    for (int d = 0; d < devices.size(); d++) {
+      series[d] = devices.get(order[d]).getValue();
+    }
+    return series;
+  }
+
+  private int priorityOf(String deviceUuid) {
+    int priority = mDevicePriority.indexOf(deviceUuid);
+    return priority >= 0 ? priority : mDevicePriority.size();
+  }
+}
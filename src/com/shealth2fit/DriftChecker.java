@@ -0,0 +1,92 @@
+package com.shealth2fit;
+
+import com.google.android.gms.tasks.Task;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.shealth2fit.util.GoogleFitWriter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static com.shealth2fit.StepCountReader.ONE_DAY;
+import static com.shealth2fit.util.DateUtil.getLocalDayStartFromUTC;
+import static com.shealth2fit.util.DateUtil.getTodayStartUtcTime;
+
+/*
+ * Compares the daily step counts of Samsung Health with the steps this app wrote to Google Fit.
+ * Both sides are read as day or hour aggregates, in parallel, Google Fit in month sized chunks.
+ * Today is never compared, its steps reach Google Fit only with the next sync and would always look drifted.
+ */
+class DriftChecker {
+  private static final int FIT_READ_CHUNK_DAYS = 31;
+
+  private final StepCountReader mReader;
+  private final GoogleFitWriter mFitWriter;
+  private final ListeningExecutorService mReadExecutor = MoreExecutors.listeningDecorator(StepCountReader.READ_EXECUTOR);
+
+  DriftChecker(StepCountReader reader, GoogleFitWriter fitWriter) {
+    mReader = reader;
+    mFitWriter = fitWriter;
+  }
+
+  // Report of the days in [startTime, endTime) before today, given as Samsung Health day_time values
+  ListenableFuture<DriftReport> check(long startTime, long requestedEndTime) {
+    long endTime = Math.max(startTime, Math.min(requestedEndTime, getTodayStartUtcTime()));
+    ListenableFuture<Map<Long, Integer>> sHealthTotals = mReadExecutor.submit(() -> mReader.readDailyTotals(startTime, endTime));
+
+    List<ListenableFuture<StepBinSeries>> fitChunks = new ArrayList<>();
+    for (long chunkStart = startTime; chunkStart < endTime; chunkStart += FIT_READ_CHUNK_DAYS * ONE_DAY) {
+      long chunkEnd = Math.min(chunkStart + FIT_READ_CHUNK_DAYS * ONE_DAY, endTime);
+      fitChunks.add(toListenableFuture(
+       mFitWriter.readHourlyStepTotals(getLocalDayStartFromUTC(chunkStart), getLocalDayStartFromUTC(chunkEnd))));
+    }
+    ListenableFuture<List<StepBinSeries>> fitTotals = Futures.allAsList(fitChunks);
+
+    return Futures.whenAllSucceed(sHealthTotals, fitTotals).call(
+     () -> compare(startTime, endTime, Futures.getDone(sHealthTotals), Futures.getDone(fitTotals)),
+     MoreExecutors.directExecutor()
+    );
+  }
+
+  // The Fit chunks are in time order, so a single cursor sums their hours into local days
+  private static DriftReport compare(long startTime, long endTime, Map<Long, Integer> sHealthTotals,
+                                     List<StepBinSeries> fitChunks) {
+    StepBinSeries fitHours = new StepBinSeries();
+    for (StepBinSeries fitChunk : fitChunks) {
+      fitHours.addAll(fitChunk);
+    }
+
+    DriftReport report = new DriftReport(startTime, endTime);
+    int hour = 0;
+    for (long dayTime = startTime; dayTime < endTime; dayTime += ONE_DAY) {
+      long dayEndTime = getLocalDayStartFromUTC(dayTime + ONE_DAY);
+      int fitCount = 0;
+      while (hour < fitHours.size() && fitHours.getTime(hour) < dayEndTime) {
+        fitCount += fitHours.getCount(hour++);
+      }
+
+      Integer sHealthCount = sHealthTotals.get(dayTime);
+      if (fitCount != (sHealthCount != null ? sHealthCount : 0)) {
+        report.add(dayTime, sHealthCount != null ? sHealthCount : 0, fitCount);
+      }
+    }
+    return report;
+  }
+
+  private static <T> ListenableFuture<T> toListenableFuture(Task<T> task) {
+    SettableFuture<T> future = SettableFuture.create();
+    task.addOnCompleteListener(MoreExecutors.directExecutor(), completedTask -> {
+      if (completedTask.isSuccessful()) {
+        future.set(completedTask.getResult());
+      } else {
+        Exception e = completedTask.getException();
+        future.setException(e != null ? e : new IllegalStateException("Google Fit read failed"));
+      }
+    });
+    return future;
+  }
+}
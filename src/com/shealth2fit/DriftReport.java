@@ -0,0 +1,72 @@
+package com.shealth2fit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.shealth2fit.StepCountReader.ONE_DAY;
+import static com.shealth2fit.util.DateUtil.getDateStringFromUTCMillis;
+
+/* Days of a range whose step count in Google Fit differs from Samsung Health */
+class DriftReport {
+  final long startTime;
+  final long endTime;
+  final List<DayDrift> driftedDays = new ArrayList<>();
+
+  DriftReport(long startTime, long endTime) {
+    this.startTime = startTime;
+    this.endTime = endTime;
+  }
+
+  void add(long dayTime, int sHealthCount, int fitCount) {
+    driftedDays.add(new DayDrift(dayTime, sHealthCount, fitCount));
+  }
+
+  // Drifted days grouped into [start, end) ranges of consecutive days, one re-sync each
+  List<long[]> getSuggestedResyncRanges() {
+    List<long[]> ranges = new ArrayList<>();
+    long[] currentRange = null;
+    for (DayDrift dayDrift : driftedDays) {
+      if (currentRange != null && currentRange[1] == dayDrift.dayTime) {
+        currentRange[1] += ONE_DAY;
+      } else {
+        currentRange = new long[]{dayDrift.dayTime, dayDrift.dayTime + ONE_DAY};
+        ranges.add(currentRange);
+      }
+    }
+    return ranges;
+  }
+
+  @Override
+  public String toString() {
+    if (driftedDays.isEmpty()) {
+      return "Google Fit matches Samsung Health";
+    }
+
+    StringBuilder report = new StringBuilder();
+    for (DayDrift dayDrift : driftedDays) {
+      report.append(getDateStringFromUTCMillis(dayDrift.dayTime))
+       .append(": Samsung Health ").append(dayDrift.sHealthCount)
+       .append(", Google Fit ").append(dayDrift.fitCount)
+       .append(" (").append(dayDrift.getDelta() > 0 ? "+" : "").append(dayDrift.getDelta()).append(")\n");
+    }
+    report.append(getSuggestedResyncRanges().size()).append(" ranges to re-sync");
+    return report.toString();
+  }
+
+  static class DayDrift {
+    final long dayTime;
+    final int sHealthCount;
+    final int fitCount;
+
+    DayDrift(long dayTime, int sHealthCount, int fitCount) {
+      this.dayTime = dayTime;
+      this.sHealthCount = sHealthCount;
+      this.fitCount = fitCount;
+    }
+
+    // Steps Google Fit has more than Samsung Health
+    int getDelta() {
+      return fitCount - sHealthCount;
+    }
+  }
+}
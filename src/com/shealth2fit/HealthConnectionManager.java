@@ -0,0 +1,198 @@
+package com.shealth2fit;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.samsung.android.sdk.healthdata.HealthConnectionErrorResult;
+import com.samsung.android.sdk.healthdata.HealthDataStore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Application wide connection to Samsung Health, shared by the UI and the sync jobs.
+ * The connection is opened by the first lease, kept while leases are held and closed once
+ * it has been unused for IDLE_TIMEOUT. A connection lost while leased, or failing on a transient error, is reopened
+ * with backoff. Other failures need the user to act, they go to the lease holders and wait for the next awaitConnected.
+ * The store and its callbacks live on the main looper, every state change below happens there.
+ */
+class HealthConnectionManager {
+  private static final String TAG = "HealthConnection";
+  private static final long IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(1);
+  private static final long BASE_RECONNECT_DELAY = TimeUnit.SECONDS.toMillis(1);
+  private static final long MAX_RECONNECT_DELAY = TimeUnit.MINUTES.toMillis(1);
+
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+  private final HealthDataStore mStore;
+  private final List<SettableFuture<HealthDataStore>> mConnectionWaiters = new ArrayList<>();
+  private final Runnable mIdleClose = this::closeIdleConnection;
+  private final Runnable mReconnect = this::connect;
+  private int mLeaseCount;
+  private int mReconnectAttempts;
+  private boolean mIsConnecting;
+  private boolean mIsConnected;
+
+  // Must be created on the main thread, the store delivers its callbacks to the creating thread
+  HealthConnectionManager(Context context) {
+    mStore = new HealthDataStore(context, mConnectionListener);
+  }
+
+  // The store stays the same object across reconnects, so readers created with it stay valid
+  HealthDataStore getStore() {
+    return mStore;
+  }
+
+  Lease acquire() {
+    Lease lease = new Lease();
+    mHandler.post(() -> {
+      mLeaseCount++;
+      mHandler.removeCallbacks(mIdleClose);
+    });
+    return lease;
+  }
+
+  private void connect() {
+    if (mIsConnected || mIsConnecting) {
+      return;
+    }
+    Log.i(TAG, "connect: attempt " + (mReconnectAttempts + 1));
+    mIsConnecting = true;
+    mStore.connectService();
+  }
+
+  private void closeIdleConnection() {
+    if (mLeaseCount > 0) {
+      return;
+    }
+    Log.i(TAG, "closeIdleConnection");
+    mHandler.removeCallbacks(mReconnect);
+    if (mIsConnected || mIsConnecting) {
+      mStore.disconnectService();
+    }
+    mIsConnected = false;
+    mIsConnecting = false;
+    mReconnectAttempts = 0;
+    // Waiters of a lease released before the connection opened would never hear from the store again
+    completeWaiters(new IllegalStateException("Samsung Health connection closed while connecting"));
+  }
+
+  private void scheduleReconnect() {
+    long delay = Math.min(MAX_RECONNECT_DELAY, BASE_RECONNECT_DELAY << Math.min(mReconnectAttempts, 16));
+    mReconnectAttempts++;
+    mHandler.removeCallbacks(mReconnect);
+    mHandler.postDelayed(mReconnect, delay);
+  }
+
+  // Failures that may go away by themselves, retrying any other one would fail the same way until the user acts
+  private static boolean isTransient(HealthConnectionErrorResult error) {
+    if (error.hasResolution()) {
+      return false;
+    }
+    switch (error.getErrorCode()) {
+      case HealthConnectionErrorResult.CONNECTION_FAILURE:
+      case HealthConnectionErrorResult.TIMEOUT:
+      case HealthConnectionErrorResult.PLATFORM_INITIALIZING:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  // Hands the store to the waiters, or the failure when there is one
+  private void completeWaiters(Exception failure) {
+    List<SettableFuture<HealthDataStore>> waiters = new ArrayList<>(mConnectionWaiters);
+    mConnectionWaiters.clear();
+    for (SettableFuture<HealthDataStore> waiter : waiters) {
+      if (failure == null) {
+        waiter.set(mStore);
+      } else {
+        waiter.setException(failure);
+      }
+    }
+  }
+
+  private final HealthDataStore.ConnectionListener mConnectionListener = new HealthDataStore.ConnectionListener() {
+    @Override
+    public void onConnected() {
+      Log.i(TAG, "onConnected");
+      mIsConnecting = false;
+      mIsConnected = true;
+      mReconnectAttempts = 0;
+      completeWaiters(null);
+    }
+
+    @Override
+    public void onConnectionFailed(HealthConnectionErrorResult error) {
+      Log.i(TAG, "onConnectionFailed: " + error.getErrorCode());
+      mIsConnecting = false;
+      mIsConnected = false;
+      // Most failures need the user to act, the waiters get the error instead of waiting for the retry
+      completeWaiters(new ConnectionFailedException(error));
+      if (mLeaseCount > 0 && isTransient(error)) {
+        scheduleReconnect();
+      } else {
+        mHandler.removeCallbacks(mReconnect);
+        mReconnectAttempts = 0;
+      }
+    }
+
+    @Override
+    public void onDisconnected() {
+      Log.i(TAG, "onDisconnected");
+      mIsConnecting = false;
+      mIsConnected = false;
+      if (mLeaseCount > 0) {
+        scheduleReconnect();
+      }
+    }
+  };
+
+  /*
+   * Keeps the connection open until released. Releasing more than once has no effect,
+   * the connection is closed IDLE_TIMEOUT after the last lease is released.
+   */
+  class Lease {
+    private final AtomicBoolean mIsReleased = new AtomicBoolean();
+
+    // Completes with the store once it is connected, or fails with a ConnectionFailedException from the attempt
+    ListenableFuture<HealthDataStore> awaitConnected() {
+      SettableFuture<HealthDataStore> connection = SettableFuture.create();
+      mHandler.post(() -> {
+        if (mIsConnected) {
+          connection.set(mStore);
+        } else {
+          mConnectionWaiters.add(connection);
+          connect();
+        }
+      });
+      return connection;
+    }
+
+    void release() {
+      if (!mIsReleased.compareAndSet(false, true)) {
+        return;
+      }
+      mHandler.post(() -> {
+        mLeaseCount--;
+        if (mLeaseCount == 0) {
+          mHandler.postDelayed(mIdleClose, IDLE_TIMEOUT);
+        }
+      });
+    }
+  }
+
+  static class ConnectionFailedException extends Exception {
+    final HealthConnectionErrorResult errorResult;
+
+    ConnectionFailedException(HealthConnectionErrorResult errorResult) {
+      super("Samsung Health connection failed: " + errorResult.getErrorCode());
+      this.errorResult = errorResult;
+    }
+  }
+}
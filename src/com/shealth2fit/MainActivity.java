@@ -5,7 +5,6 @@ import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Context;
-import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
@@ -14,7 +13,9 @@ import android.view.Menu;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.BaseAdapter;
+import android.widget.LinearLayout;
 import android.widget.ListView;
+import android.widget.ProgressBar;
 import android.widget.Switch;
 import android.widget.TextView;
 
@@ -30,18 +31,19 @@ import com.archit.calendardaterangepicker.customviews.DateRangeCalendarView;
 import com.google.android.gms.auth.api.signin.GoogleSignIn;
 import com.google.android.gms.fitness.FitnessOptions;
 import com.google.android.gms.fitness.data.DataType;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.samsung.android.sdk.healthdata.HealthConnectionErrorResult;
 import com.samsung.android.sdk.healthdata.HealthDataStore;
 import com.samsung.android.sdk.healthdata.HealthPermissionManager.PermissionKey;
 import com.samsung.android.sdk.healthdata.HealthPermissionManager.PermissionResult;
 import com.samsung.android.sdk.healthdata.HealthResultHolder;
 import com.shealth2fit.util.DateUtil;
+import com.shealth2fit.util.GoogleFitWriter;
 import com.shealth2fit.util.NotificationUtil;
 import com.shealth2fit.util.SamsungHealthUtil;
 
-import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -50,8 +52,6 @@ import java.util.concurrent.TimeUnit;
 import butterknife.BindView;
 import butterknife.ButterKnife;
 
-import static com.shealth2fit.SyncWorker.DATE_END_TIMESTAMP_KEY;
-import static com.shealth2fit.SyncWorker.DATE_START_TIMESTAMP_KEY;
 import static com.shealth2fit.SyncWorker.SYNC_WORKER_TAG;
 import static com.shealth2fit.util.SamsungHealthUtil.calorieToString;
 
@@ -60,6 +60,8 @@ public class MainActivity extends AppCompatActivity {
   public static final String TAG = "SHealth2Fit";
   private static final int REQUEST_OAUTH_REQUEST_CODE = 187;
   private static final int MY_PERMISSIONS_REQUEST_ACTIVITY_RECOGNITION = 11;
+  private static final int DRIFT_CHECK_DAYS = 365;
+  private static final int BACKFILL_PARALLELISM = 2;
 
   @BindView(R.id.total_step_count)
   TextView mStepCountTv;
@@ -71,6 +73,12 @@ public class MainActivity extends AppCompatActivity {
   Switch mModeSwitch;
   @BindView(R.id.calendarPicker)
   DateRangeCalendarView mCalendar;
+  @BindView(R.id.sync_progress_panel)
+  LinearLayout mSyncProgressPanel;
+  @BindView(R.id.sync_progress_bar)
+  ProgressBar mSyncProgressBar;
+  @BindView(R.id.sync_progress_text)
+  TextView mSyncProgressTv;
 
   private HealthDataStore mStore;
   private StepCountReader mReporter;
@@ -93,9 +101,11 @@ public class MainActivity extends AppCompatActivity {
    };
   private Context mContext;
   private Activity mActivity;
-  private final HealthDataStore.ConnectionListener mConnectionListener = new HealthDataStore.ConnectionListener() {
+  private HealthConnectionManager.Lease mStoreLease;
+  private boolean mIsConnectionFailed;
+  private final FutureCallback<HealthDataStore> mConnectionCallback = new FutureCallback<HealthDataStore>() {
     @Override
-    public void onConnected() {
+    public void onSuccess(HealthDataStore store) {
       Log.d(TAG, "onConnected");
       if (SamsungHealthUtil.isPermissionAcquired(mStore)) {
         mReporter.requestDailyStepCount(mTodayTimeInUTC);
@@ -105,16 +115,12 @@ public class MainActivity extends AppCompatActivity {
     }
 
     @Override
-    public void onConnectionFailed(HealthConnectionErrorResult error) {
-      Log.d(TAG, "onConnectionFailed");
-      showConnectionFailureDialog(error);
-    }
-
-    @Override
-    public void onDisconnected() {
-      Log.d(TAG, "onDisconnected");
-      if (!isFinishing()) {
-        mStore.connectService();
+    public void onFailure(@NonNull Throwable t) {
+      Log.d(TAG, "onConnectionFailed", t);
+      if (t instanceof HealthConnectionManager.ConnectionFailedException) {
+        // The connection is not retried on errors the user has to resolve, it is tried again once back from it
+        mIsConnectionFailed = true;
+        showConnectionFailureDialog(((HealthConnectionManager.ConnectionFailedException) t).errorResult);
       }
     }
   };
@@ -127,14 +133,14 @@ public class MainActivity extends AppCompatActivity {
     }
 
     @Override
-    public void onBinningDataChanged(int totalStepCount, float totalCalories, List<StepCountReader.StepBinningData> stepBinningDataList) {
+    public void onBinningDataChanged(int totalStepCount, float totalCalories, StepBinSeries binSeries) {
       updateStepCountView(String.valueOf(totalStepCount), totalCalories);
-      updateBinningChartView(stepBinningDataList);
+      updateBinningChartView(binSeries);
     }
 
     @Override
-    public void onBinningDataChanged(List<StepCountReader.StepBinningData> stepBinningDataList) {
-      updateBinningChartView(stepBinningDataList);
+    public void onBinningDataChanged(StepBinSeries binSeries) {
+      updateBinningChartView(binSeries);
     }
   };
   private WorkManager workManager;
@@ -153,12 +159,12 @@ public class MainActivity extends AppCompatActivity {
 
     NotificationUtil.createNotificationChannel(mContext);
 
-    // Create a HealthDataStore instance and set its listener
-    mStore = new HealthDataStore(this, mConnectionListener);
-
-    // Request the connection to the health data store
-    mStore.connectService();
-    mReporter = new StepCountReader(mStore, mStepCountObserver);
+    // Share the application connection to the health data store, a recent sync may have left it open
+    HealthConnectionManager connectionManager = BaseApplication.getHealthConnectionManager();
+    mStore = connectionManager.getStore();
+    mStoreLease = connectionManager.acquire();
+    mReporter = new StepCountReader(mStore, mStepCountObserver, StepTrendCache.getInstance(mContext));
+    Futures.addCallback(mStoreLease.awaitConnected(), mConnectionCallback, ContextCompat.getMainExecutor(mContext));
 
     mBinningListAdapter = new BinningListAdapter();
     mBinningListView.setAdapter(mBinningListAdapter);
@@ -208,7 +214,7 @@ public class MainActivity extends AppCompatActivity {
 
           syncDataForDate(mStartDateUTC, mEndDateUTC);
 
-          mBinningListAdapter.changeDataSet(Collections.emptyList());
+          mBinningListAdapter.changeDataSet(new StepBinSeries(0));
           mReporter.requestDailyStepCount(mStartDateUTC);
         }
       }
@@ -260,11 +266,9 @@ public class MainActivity extends AppCompatActivity {
     workManager.enqueue(saveRequest);
   }
 
+  // Taps in quick succession and overlapping ranges are merged by the queue before anything is synced
   private void syncDataForDate(long startTimeInMillis, long endTimeInMillis) {
-    Intent syncServiceIntent = new Intent(this, SyncService.class);
-    syncServiceIntent.putExtra(DATE_START_TIMESTAMP_KEY, startTimeInMillis);
-    syncServiceIntent.putExtra(DATE_END_TIMESTAMP_KEY, endTimeInMillis);
-    startService(syncServiceIntent);
+    SyncRequestQueue.getInstance(mContext).request(startTimeInMillis, endTimeInMillis);
   }
 
   @Override
@@ -290,16 +294,42 @@ public class MainActivity extends AppCompatActivity {
 
   @Override
   public void onDestroy() {
-    mStore.disconnectService();
+    mStoreLease.release();
     super.onDestroy();
   }
 
   @Override
   public void onResume() {
     super.onResume();
+    if (mIsConnectionFailed) {
+      mIsConnectionFailed = false;
+      Futures.addCallback(mStoreLease.awaitConnected(), mConnectionCallback, ContextCompat.getMainExecutor(mContext));
+    }
     mReporter.requestDailyStepCount(mTodayTimeInUTC);
+    SyncProgressMonitor.getInstance().addObserver(mSyncProgressObserver);
   }
 
+  @Override
+  public void onPause() {
+    SyncProgressMonitor.getInstance().removeObserver(mSyncProgressObserver);
+    super.onPause();
+  }
+
+  // Combined progress of every running sync, from the UI requests and the history import alike
+  private final SyncProgressMonitor.Observer mSyncProgressObserver = runningJobs -> {
+    if (runningJobs.isEmpty()) {
+      mSyncProgressPanel.setVisibility(View.GONE);
+      return;
+    }
+
+    SyncProgress progress = SyncProgress.combine(runningJobs);
+    mSyncProgressPanel.setVisibility(View.VISIBLE);
+    mSyncProgressBar.setIndeterminate(progress.totalDays == 0);
+    mSyncProgressBar.setMax(progress.totalDays);
+    mSyncProgressBar.setProgress(progress.daysRead);
+    mSyncProgressTv.setText(progress.getSummary(mContext));
+  };
+
   private void updateStepCountView(final String count, final float totalCalories) {
     // Display the today step count so far
     runOnUiThread(() -> {
@@ -309,10 +339,72 @@ public class MainActivity extends AppCompatActivity {
     });
   }
 
-  private void updateBinningChartView(List<StepCountReader.StepBinningData> stepBinningDataList) {
+  private void updateBinningChartView(StepBinSeries binSeries) {
     // the following code will be replaced with chart drawing code
-    Log.i(TAG, "updateBinningChartView: " + stepBinningDataList.size());
-    mBinningListAdapter.changeDataSet(stepBinningDataList);
+    Log.i(TAG, "updateBinningChartView: " + binSeries.size());
+    mBinningListAdapter.changeDataSet(binSeries);
+  }
+
+  private void checkDrift() {
+    // Up to yesterday, today is still being synced
+    long endTime = mTodayTimeInUTC;
+    long startTime = endTime - DRIFT_CHECK_DAYS * StepCountReader.ONE_DAY;
+
+    DriftChecker driftChecker = new DriftChecker(mReporter, new GoogleFitWriter(mContext));
+    Futures.addCallback(driftChecker.check(startTime, endTime), new FutureCallback<DriftReport>() {
+      @Override
+      public void onSuccess(DriftReport report) {
+        showDriftReportDialog(report);
+      }
+
+      @Override
+      public void onFailure(@NonNull Throwable t) {
+        Log.e(TAG, "checkDrift: failed", t);
+        if (!isFinishing()) {
+          new AlertDialog.Builder(MainActivity.this)
+           .setTitle(R.string.notice)
+           .setMessage(R.string.msg_drift_check_failed)
+           .setPositiveButton(R.string.ok, null)
+           .show();
+        }
+      }
+    }, ContextCompat.getMainExecutor(mContext));
+  }
+
+  private void importHistory() {
+    BackfillPlanWorker.start(mContext, BACKFILL_PARALLELISM, false, false);
+    new AlertDialog.Builder(this)
+     .setTitle(R.string.notice)
+     .setMessage(R.string.msg_import_history_started)
+     .setPositiveButton(R.string.ok, null)
+     .show();
+  }
+
+  private void showDriftReportDialog(DriftReport report) {
+    if (isFinishing()) {
+      return;
+    }
+
+    AlertDialog.Builder alert = new AlertDialog.Builder(this);
+    alert.setTitle(R.string.drift_report_title)
+     .setMessage(report.toString())
+     .setNegativeButton(R.string.cancel, null);
+
+    List<long[]> resyncRanges = report.getSuggestedResyncRanges();
+    if (!resyncRanges.isEmpty()) {
+      alert.setPositiveButton(R.string.resync, (dialog, which) -> StepCountReader.READ_EXECUTOR.execute(() -> {
+        // The ledger knows these days as synced and the cache still holds the bins that drifted,
+        // both have to forget them for the days to be read and uploaded again
+        SyncLedger ledger = SyncLedger.getInstance(mContext);
+        StepTrendCache cache = StepTrendCache.getInstance(mContext);
+        for (long[] resyncRange : resyncRanges) {
+          ledger.markStale(resyncRange[0], resyncRange[1]);
+          cache.invalidate(resyncRange[0], resyncRange[1]);
+          syncDataForDate(resyncRange[0], resyncRange[1]);
+        }
+      }));
+    }
+    alert.show();
   }
 
   private void showPermissionAlarmDialog() {
@@ -381,6 +473,10 @@ public class MainActivity extends AppCompatActivity {
 
     if (item.getItemId() == R.id.connect) {
       SamsungHealthUtil.requestPermission(mStore, mActivity, mPermissionListener);
+    } else if (item.getItemId() == R.id.check_drift) {
+      checkDrift();
+    } else if (item.getItemId() == R.id.import_history) {
+      importHistory();
     }
 
     return true;
@@ -393,9 +489,9 @@ public class MainActivity extends AppCompatActivity {
 
   private class BinningListAdapter extends BaseAdapter {
 
-    private List<StepCountReader.StepBinningData> mDataList = new ArrayList<>();
+    private StepBinSeries mDataList = new StepBinSeries(0);
 
-    void changeDataSet(List<StepCountReader.StepBinningData> dataList) {
+    void changeDataSet(StepBinSeries dataList) {
       mDataList = dataList;
       notifyDataSetChanged();
     }
@@ -407,7 +503,7 @@ public class MainActivity extends AppCompatActivity {
 
     @Override
     public Object getItem(int position) {
-      return mDataList.get(position);
+      return mDataList.getTime(position);
     }
 
     @Override
@@ -424,10 +520,10 @@ public class MainActivity extends AppCompatActivity {
       }
 
       ((TextView) convertView.findViewById(android.R.id.text1))
-       .setText(mDataList.get(position).getCalorie() + " kcal " + mDataList.get(position).count + " steps");
+       .setText(mDataList.getCalorie(position) + " kcal " + mDataList.getCount(position) + " steps");
 
       ((TextView) convertView.findViewById(android.R.id.text2))
-       .setText(new Date(mDataList.get(position).time).toString());
+       .setText(new Date(mDataList.getTime(position)).toString());
 
       return convertView;
     }
@@ -0,0 +1,189 @@
+package com.shealth2fit;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.google.android.gms.tasks.Tasks;
+import com.shealth2fit.util.GoogleFitWriter;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.shealth2fit.StepCountReader.BIN_MILLIS;
+import static com.shealth2fit.StepCountReader.ONE_DAY;
+import static com.shealth2fit.util.DateUtil.getLocalDayStartFromUTC;
+
+/*
+ * Retries the batches of the upload outbox. Only the stored bins are written again,
+ * Samsung Health is not read, so a flaky connection costs the retry of a few batches.
+ * A batch replaces its span of Google Fit, so a retry after an insert that partly went through adds no copies,
+ * whichever of its step, calorie and distance inserts failed.
+ * Days a later sync has uploaded or queued again are left out of the retry, the batch would roll them back.
+ * The days of a batch are leased from DayLeaseTable during its retry, like a sync job leases the days it syncs.
+ */
+public class OutboxWorker extends Worker {
+  private static final String TAG = "OutboxWorker";
+  private static final String OUTBOX_WORK_NAME = "upload_outbox";
+  // Batches still failing after this many retries are dropped, their days are then read again by the next sync
+  private static final int MAX_ATTEMPTS = 10;
+  private static final int MAX_BATCHES_PER_RUN = 50;
+
+  private final Context mContext;
+
+  public OutboxWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+    super(context, workerParams);
+    mContext = getApplicationContext();
+  }
+
+  // Schedules a run for the earliest due batch, unless one is already scheduled
+  static void schedule(Context context) {
+    enqueue(context, ExistingWorkPolicy.KEEP);
+  }
+
+  private static void enqueue(Context context, ExistingWorkPolicy policy) {
+    long nextAttemptTime = UploadOutbox.getInstance(context).getNextAttemptTime();
+    if (nextAttemptTime == 0) {
+      return;
+    }
+
+    Constraints constraints = new Constraints.Builder()
+     .setRequiredNetworkType(NetworkType.CONNECTED)
+     .build();
+
+    OneTimeWorkRequest retryRequest = new OneTimeWorkRequest.Builder(OutboxWorker.class)
+     .setConstraints(constraints)
+     .setInitialDelay(Math.max(0, nextAttemptTime - System.currentTimeMillis()), TimeUnit.MILLISECONDS)
+     .build();
+
+    WorkManager.getInstance(context).enqueueUniqueWork(OUTBOX_WORK_NAME, policy, retryRequest);
+  }
+
+  @NonNull
+  @Override
+  public Result doWork() {
+    UploadOutbox outbox = UploadOutbox.getInstance(mContext);
+    SyncLedger ledger = SyncLedger.getInstance(mContext);
+    GoogleFitWriter fitWriter = new GoogleFitWriter(mContext);
+    AdaptiveBatcher batcher = AdaptiveBatcher.getInstance(mContext);
+
+    // Batches queued at a larger size are cut down first, a batch too large for one insert would fail every retry
+    List<UploadOutbox.Entry> dueEntries = outbox.getDue(System.currentTimeMillis(), MAX_BATCHES_PER_RUN);
+    boolean isSplit = false;
+    for (UploadOutbox.Entry entry : dueEntries) {
+      if (entry.binSeries.size() > batcher.getBatchSize()) {
+        outbox.split(entry, batcher.getBatchSize());
+        isSplit = true;
+      }
+    }
+    if (isSplit) {
+      dueEntries = outbox.getDue(System.currentTimeMillis(), MAX_BATCHES_PER_RUN);
+    }
+    Log.i(TAG, "doWork: retrying " + dueEntries.size() + " batches");
+
+    for (UploadOutbox.Entry entry : dueEntries) {
+      // Batches queued without their span own the span of their bins, batches never overlap
+      long startTime = entry.startTime;
+      long endTime = entry.endTime;
+      if (endTime <= startTime && !entry.binSeries.isEmpty()) {
+        startTime = entry.binSeries.getTime(0);
+        endTime = entry.binSeries.getTime(entry.binSeries.size() - 1) + BIN_MILLIS;
+      }
+
+      // The days are leased while the batch is replayed, so a sync cannot upload them between the check and the replay
+      DayLeaseTable.Claim claim = DayLeaseTable.getInstance().claim(entry.startDayTime, entry.endDayTime);
+      boolean isSuccessful = false;
+      try {
+        if (!claim.getHeldDays().isEmpty()) {
+          // A sync is working on some of the days, the batch is tried again once it is done
+          outbox.postpone(entry.id, entry.attempts);
+          continue;
+        }
+
+        // Days read again since the batch was queued have newer content in Google Fit or in a newer batch
+        DayRangeSet replayDays = new DayRangeSet();
+        replayDays.add(entry.startDayTime, entry.endDayTime);
+        for (long dayTime : ledger.getDaysReadAfter(entry.startDayTime, entry.endDayTime, entry.queuedTime)) {
+          replayDays.remove(dayTime, dayTime + ONE_DAY);
+        }
+        List<long[]> replayRanges = replayDays.getRanges();
+        if (replayRanges.isEmpty()) {
+          Log.i(TAG, "doWork: dropping a batch superseded by a later sync");
+          outbox.remove(entry.id);
+          isSuccessful = true;
+          continue;
+        }
+
+        long submitTime = SystemClock.elapsedRealtime();
+        try {
+          for (long[] replayRange : replayRanges) {
+            long replayStartTime = Math.max(startTime, getLocalDayStartFromUTC(replayRange[0]));
+            long replayEndTime = Math.min(endTime, getLocalDayStartFromUTC(replayRange[1]));
+            if (replayStartTime < replayEndTime) {
+              Tasks.await(fitWriter.replaceSpan(sliceByTime(entry.binSeries, replayStartTime, replayEndTime),
+               replayStartTime, replayEndTime));
+            }
+          }
+          batcher.onBatchCompleted(entry.binSeries.size(), SystemClock.elapsedRealtime() - submitTime, true);
+          outbox.remove(entry.id);
+          isSuccessful = true;
+
+          // A day is only synced once none of its batches is left in the outbox
+          for (long[] replayRange : replayRanges) {
+            for (long dayTime = replayRange[0]; dayTime < replayRange[1]; dayTime += ONE_DAY) {
+              if (!outbox.hasDay(dayTime)) {
+                ledger.markQueuedSynced(dayTime);
+              }
+            }
+          }
+        } catch (ExecutionException e) {
+          batcher.onBatchCompleted(entry.binSeries.size(), SystemClock.elapsedRealtime() - submitTime, false);
+          int attempts = entry.attempts + 1;
+          Log.e(TAG, "doWork: retry " + attempts + " failed", e.getCause());
+          if (attempts >= MAX_ATTEMPTS) {
+            outbox.remove(entry.id);
+            for (long[] replayRange : replayRanges) {
+              ledger.markStale(replayRange[0], replayRange[1]);
+            }
+          } else {
+            outbox.postpone(entry.id, attempts);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      } finally {
+        claim.release(isSuccessful);
+      }
+    }
+
+    batcher.save();
+
+    // Chained after this run, a KEEP would be ignored while this work is still running
+    enqueue(mContext, ExistingWorkPolicy.APPEND);
+    return Result.success();
+  }
+
+  // Bins of [startTime, endTime) of a series in time order
+  private static StepBinSeries sliceByTime(StepBinSeries binSeries, long startTime, long endTime) {
+    int fromIndex = 0;
+    while (fromIndex < binSeries.size() && binSeries.getTime(fromIndex) < startTime) {
+      fromIndex++;
+    }
+    int toIndex = fromIndex;
+    while (toIndex < binSeries.size() && binSeries.getTime(toIndex) < endTime) {
+      toIndex++;
+    }
+    return binSeries.slice(fromIndex, toIndex);
+  }
+}
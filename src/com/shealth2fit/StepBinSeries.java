@@ -0,0 +1,273 @@
+package com.shealth2fit;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Series of 10 minute step bins stored in parallel primitive arrays.
+ * <p>
+ * Slices and partitions are read only views sharing the arrays of the series they were taken from,
+ * so they stay valid only as long as that series is not cleared or compacted.
+ */
+public class StepBinSeries {
+  private static final int DEFAULT_CAPACITY = 144;
+  private static final int BYTES_PER_BIN = 8 + 4 + 4 + 4;
+
+  private long[] mTimes;
+  private int[] mCounts;
+  private float[] mCalories;
+  private float[] mDistances;
+  private final int mOffset;
+  private int mSize;
+  private final boolean mIsView;
+
+  public StepBinSeries() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public StepBinSeries(int capacity) {
+    mTimes = new long[capacity];
+    mCounts = new int[capacity];
+    mCalories = new float[capacity];
+    mDistances = new float[capacity];
+    mOffset = 0;
+    mSize = 0;
+    mIsView = false;
+  }
+
+  private StepBinSeries(StepBinSeries source, int offset, int size) {
+    mTimes = source.mTimes;
+    mCounts = source.mCounts;
+    mCalories = source.mCalories;
+    mDistances = source.mDistances;
+    mOffset = offset;
+    mSize = size;
+    mIsView = true;
+  }
+
+  public int size() {
+    return mSize;
+  }
+
+  public boolean isEmpty() {
+    return mSize == 0;
+  }
+
+  public long getTime(int index) {
+    return mTimes[mOffset + index];
+  }
+
+  public int getCount(int index) {
+    return mCounts[mOffset + index];
+  }
+
+  public float getCalorie(int index) {
+    return mCalories[mOffset + index];
+  }
+
+  public float getDistance(int index) {
+    return mDistances[mOffset + index];
+  }
+
+  public int getTotalCount() {
+    int totalCount = 0;
+    for (int i = mOffset, end = mOffset + mSize; i < end; i++) {
+      totalCount += mCounts[i];
+    }
+    return totalCount;
+  }
+
+  public float getTotalCalories() {
+    float totalCalories = 0;
+    for (int i = mOffset, end = mOffset + mSize; i < end; i++) {
+      totalCalories += mCalories[i];
+    }
+    return totalCalories;
+  }
+
+  public void add(long time, int count, float calorie, float distance) {
+    checkWritable();
+    ensureCapacity(mSize + 1);
+    mTimes[mSize] = time;
+    mCounts[mSize] = count;
+    mCalories[mSize] = calorie;
+    mDistances[mSize] = distance;
+    mSize++;
+  }
+
+  public void addAll(StepBinSeries other) {
+    checkWritable();
+    ensureCapacity(mSize + other.mSize);
+    System.arraycopy(other.mTimes, other.mOffset, mTimes, mSize, other.mSize);
+    System.arraycopy(other.mCounts, other.mOffset, mCounts, mSize, other.mSize);
+    System.arraycopy(other.mCalories, other.mOffset, mCalories, mSize, other.mSize);
+    System.arraycopy(other.mDistances, other.mOffset, mDistances, mSize, other.mSize);
+    mSize += other.mSize;
+  }
+
+  public void clear() {
+    checkWritable();
+    mSize = 0;
+  }
+
+  // Drops the first count bins, moving the rest to the front of the arrays
+  public void removeFirst(int count) {
+    checkWritable();
+    int remaining = mSize - count;
+    System.arraycopy(mTimes, count, mTimes, 0, remaining);
+    System.arraycopy(mCounts, count, mCounts, 0, remaining);
+    System.arraycopy(mCalories, count, mCalories, 0, remaining);
+    System.arraycopy(mDistances, count, mDistances, 0, remaining);
+    mSize = remaining;
+  }
+
+  // Writable copy with its own arrays, stays valid after the source is compacted
+  public StepBinSeries copy() {
+    StepBinSeries copy = new StepBinSeries(Math.max(1, mSize));
+    copy.addAll(this);
+    return copy;
+  }
+
+  // Read only view of [fromIndex, toIndex) without copying
+  public StepBinSeries slice(int fromIndex, int toIndex) {
+    if (fromIndex < 0 || toIndex > mSize || fromIndex > toIndex) {
+      throw new IndexOutOfBoundsException("slice " + fromIndex + ".." + toIndex + " of " + mSize);
+    }
+    return new StepBinSeries(this, mOffset + fromIndex, toIndex - fromIndex);
+  }
+
+  // Consecutive views of at most partitionSize bins each
+  public List<StepBinSeries> partition(int partitionSize) {
+    List<StepBinSeries> partitions = new ArrayList<>((mSize + partitionSize - 1) / partitionSize);
+    for (int from = 0; from < mSize; from += partitionSize) {
+      partitions.add(slice(from, Math.min(from + partitionSize, mSize)));
+    }
+    return partitions;
+  }
+
+  public boolean isSortedByTime() {
+    for (int i = mOffset + 1, end = mOffset + mSize; i < end; i++) {
+      if (mTimes[i - 1] > mTimes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Stable sort of the bins by start time
+  public void sortByTime() {
+    checkWritable();
+    if (isSortedByTime()) {
+      return;
+    }
+
+    int[] order = new int[mSize];
+    for (int i = 0; i < mSize; i++) {
+      order[i] = i;
+    }
+    mergeSortByTime(order, new int[mSize], 0, mSize);
+
+    long[] times = new long[mTimes.length];
+    int[] counts = new int[mCounts.length];
+    float[] calories = new float[mCalories.length];
+    float[] distances = new float[mDistances.length];
+    for (int i = 0; i < mSize; i++) {
+      int from = order[i];
+      times[i] = mTimes[from];
+      counts[i] = mCounts[from];
+      calories[i] = mCalories[from];
+      distances[i] = mDistances[from];
+    }
+    mTimes = times;
+    mCounts = counts;
+    mCalories = calories;
+    mDistances = distances;
+  }
+
+  private void mergeSortByTime(int[] order, int[] scratch, int from, int to) {
+    if (to - from < 2) {
+      return;
+    }
+    int mid = (from + to) >>> 1;
+    mergeSortByTime(order, scratch, from, mid);
+    mergeSortByTime(order, scratch, mid, to);
+    if (mTimes[order[mid - 1]] <= mTimes[order[mid]]) {
+      return;
+    }
+
+    System.arraycopy(order, from, scratch, from, to - from);
+    int left = from;
+    int right = mid;
+    for (int i = from; i < to; i++) {
+      if (right >= to || (left < mid && mTimes[scratch[left]] <= mTimes[scratch[right]])) {
+        order[i] = scratch[left++];
+      } else {
+        order[i] = scratch[right++];
+      }
+    }
+  }
+
+  // Merges two series sorted by time into a new sorted series, on equal times the bins of first come first
+  public static StepBinSeries merge(StepBinSeries first, StepBinSeries second) {
+    StepBinSeries merged = new StepBinSeries(Math.max(1, first.mSize + second.mSize));
+    int i = 0;
+    int j = 0;
+    while (i < first.mSize || j < second.mSize) {
+      if (j >= second.mSize || (i < first.mSize && first.getTime(i) <= second.getTime(j))) {
+        merged.add(first.getTime(i), first.getCount(i), first.getCalorie(i), first.getDistance(i));
+        i++;
+      } else {
+        merged.add(second.getTime(j), second.getCount(j), second.getCalorie(j), second.getDistance(j));
+        j++;
+      }
+    }
+    return merged;
+  }
+
+  // Compact binary form used by the local caches: size followed by one time/count/calorie/distance record per bin
+  public byte[] toBytes() {
+    ByteBuffer buffer = ByteBuffer.allocate(4 + mSize * BYTES_PER_BIN);
+    buffer.putInt(mSize);
+    for (int i = mOffset, end = mOffset + mSize; i < end; i++) {
+      buffer.putLong(mTimes[i]).putInt(mCounts[i]).putFloat(mCalories[i]).putFloat(mDistances[i]);
+    }
+    return buffer.array();
+  }
+
+  public static StepBinSeries fromBytes(byte[] bytes) {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    int size = buffer.getInt();
+    StepBinSeries binSeries = new StepBinSeries(size);
+    for (int i = 0; i < size; i++) {
+      binSeries.add(buffer.getLong(), buffer.getInt(), buffer.getFloat(), buffer.getFloat());
+    }
+    return binSeries;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity <= mTimes.length) {
+      return;
+    }
+    int newCapacity = Math.max(capacity, mTimes.length * 2);
+    mTimes = Arrays.copyOf(mTimes, newCapacity);
+    mCounts = Arrays.copyOf(mCounts, newCapacity);
+    mCalories = Arrays.copyOf(mCalories, newCapacity);
+    mDistances = Arrays.copyOf(mDistances, newCapacity);
+  }
+
+  private void checkWritable() {
+    if (mIsView) {
+      throw new UnsupportedOperationException("StepBinSeries view is read only");
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "StepBinSeries{" +
+     "size=" + mSize +
+     ", totalCount=" + getTotalCount() +
+     '}';
+  }
+}
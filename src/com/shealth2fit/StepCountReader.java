@@ -1,9 +1,10 @@
 package com.shealth2fit;
 
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.util.Log;
 
-import androidx.annotation.Nullable;
-
 import com.samsung.android.sdk.healthdata.HealthConstants;
 import com.samsung.android.sdk.healthdata.HealthData;
 import com.samsung.android.sdk.healthdata.HealthDataResolver;
@@ -14,19 +15,24 @@ import com.samsung.android.sdk.healthdata.HealthDataResolver.Filter;
 import com.samsung.android.sdk.healthdata.HealthDataResolver.ReadRequest;
 import com.samsung.android.sdk.healthdata.HealthDataResolver.SortOrder;
 import com.samsung.android.sdk.healthdata.HealthDataStore;
-import com.samsung.android.sdk.healthdata.HealthDataUtil;
+import com.shealth2fit.util.DateUtil;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
-import java.util.Objects;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 
 import static com.shealth2fit.util.DateUtil.TODAY_START_UTC_TIME;
 
@@ -35,6 +41,7 @@ public class StepCountReader {
 
   public static final String STEP_SUMMARY_DATA_TYPE_NAME = "com.samsung.shealth.step_daily_trend";
   static final long ONE_DAY = 24 * 60 * 60 * 1000;
+  public static final long BIN_MILLIS = 10 * 60 * 1000;
   private static final String TAG = "StepCountReader";
   private static final String PROPERTY_TIME = "day_time";
   private static final String PROPERTY_COUNT = "count";
@@ -42,41 +49,79 @@ public class StepCountReader {
   private static final String ALIAS_TOTAL_COUNT = "count";
   private static final String ALIAS_DEVICE_UUID = "deviceuuid";
   private static final String ALIAS_BINNING_TIME = "binning_time";
+  static final int DEFAULT_RANGE_CHUNK_DAYS = 14;
+  static final int DEFAULT_MAX_IN_FLIGHT_READS = 3;
+  static final ExecutorService READ_EXECUTOR = Executors.newCachedThreadPool();
+  // Looper the resolver delivers its results to. The reads themselves block on READ_EXECUTOR
+  // and sync threads, which have no looper of their own for the SDK to use
+  private static final Looper RESULT_LOOPER = startResultThread();
 
   private final HealthDataResolver mResolver;
+  private final Handler mCallbackHandler = new Handler(Looper.getMainLooper());
   private final StepCountObserver mObserver;
+  private final StepTrendCache mCache;
+  private UploadedDayHashes mUploadedDayHashes;
+  private DeviceBinMerger mDeviceBinMerger = new DeviceBinMerger(DeviceBinMerger.Policy.MAX);
+  private int mRangeChunkDays = DEFAULT_RANGE_CHUNK_DAYS;
+  private int mMaxInFlightReads = DEFAULT_MAX_IN_FLIGHT_READS;
 
   StepCountReader(HealthDataStore store, StepCountObserver observer) {
-    mResolver = new HealthDataResolver(store, null);
+    this(store, observer, null);
+  }
+
+  StepCountReader(HealthDataStore store, StepCountObserver observer, StepTrendCache cache) {
+    mResolver = new HealthDataResolver(store, new Handler(RESULT_LOOPER));
     mObserver = observer;
+    mCache = cache;
   }
 
-  private static List<StepBinningData> getBinningData(byte[] zip, long startTime) {
-    String pattern = "yyyy-MM-dd";
-    SimpleDateFormat simpleDateFormat = new SimpleDateFormat(pattern, Locale.getDefault());
+  private static Looper startResultThread() {
+    HandlerThread resultThread = new HandlerThread("HealthDataResults");
+    resultThread.start();
+    return resultThread.getLooper();
+  }
 
-    String date = simpleDateFormat.format(new Date(startTime));
-    SimpleDateFormat dFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.getDefault());
+  // How the bins of the devices that recorded steps today are combined
+  void setDeviceBinMerger(DeviceBinMerger deviceBinMerger) {
+    mDeviceBinMerger = deviceBinMerger;
+  }
 
-    List<StepBinningData> binningDataList = HealthDataUtil.getStructuredDataList(zip, StepBinningData.class);
-    for (int i = binningDataList.size() - 1; i >= 0; i--) {
-      StepBinningData binItem = binningDataList.get(i);
-      if (binItem.count == 0) {
-        binningDataList.remove(i);
-      } else {
-        Date binDate = new Date();
+  // Source of the hashes of the days already uploaded, used by readStepDataForRange to skip unchanged days
+  void setUploadedDayHashes(UploadedDayHashes uploadedDayHashes) {
+    mUploadedDayHashes = uploadedDayHashes;
+  }
 
-        try {
-          binDate = dFormat.parse(date + " " + String.format(Locale.US, "%02d:%02d", i / 6, (i % 6) * 10));
-        } catch (ParseException e) {
-          e.printStackTrace();
-        }
+  // Number of days fetched by a single daily trend request in readStepDataForRange
+  void setRangeChunkDays(int rangeChunkDays) {
+    mRangeChunkDays = Math.max(1, rangeChunkDays);
+  }
 
-        binningDataList.get(i).time = Objects.requireNonNull(binDate).getTime();
-      }
+  // Number of range chunk reads allowed to run at the same time in readStepDataForRange
+  void setMaxInFlightReads(int maxInFlightReads) {
+    mMaxInFlightReads = Math.max(1, maxInFlightReads);
+  }
+
+  // Hash of a binning_data blob, 0 is kept for days without data
+  private static long getContentHash(byte[] zip) {
+    if (zip == null || zip.length == 0) {
+      return 0;
     }
+    CRC32 crc = new CRC32();
+    crc.update(zip, 0, zip.length);
+    return crc.getValue() + 1;
+  }
+
+  private static boolean isUnchanged(Map<Long, Long> uploadedHashes, long dayTime, long contentHash) {
+    Long uploadedHash = uploadedHashes.get(dayTime);
+    return contentHash != 0 && uploadedHash != null && uploadedHash == contentHash;
+  }
 
-    return binningDataList;
+  private static StepBinSeries getBinningData(byte[] zip, long startTime) {
+    try {
+      return BinningDataDecoder.decode(zip, startTime, TimeZone.getDefault());
+    } catch (IOException e) {
+      throw new IllegalStateException("Unreadable binning data of day " + startTime, e);
+    }
   }
 
   void readSleepData() {
@@ -120,56 +165,84 @@ public class StepCountReader {
       // Get today step count
       readStepCount(startTime);
     } else {
-      // Get historical step count
-      readStepDailyTrend(startTime);
+      // Get historical step count. The cache is on disk, so the lookup and the read run on READ_EXECUTOR
+      READ_EXECUTOR.execute(() -> {
+        StepTrendCache.Entry cachedDay = mCache != null ? mCache.getFresh(startTime) : null;
+        if (cachedDay != null) {
+          postDayRead(startTime, cachedDay.count, cachedDay.calories, cachedDay.binSeries);
+        } else {
+          readStepDailyTrend(startTime);
+        }
+      });
     }
   }
 
+  // Single day reads report to the main thread, where the UI asks for them
+  private void postDayRead(long startTime, int totalCount, float totalCalories, StepBinSeries binSeries) {
+    if (mObserver == null) {
+      return;
+    }
+    mCallbackHandler.post(() -> {
+      mObserver.onChanged(startTime, totalCount, totalCalories);
+      mObserver.onBinningDataChanged(totalCount, totalCalories, binSeries);
+    });
+  }
+
   private void readStepCount(final long startTime) {
     Log.i(TAG, "Read Step Count for Today : " + startTime);
 
-    // Get sum of step counts by device
+    // Get 10 minute binning data of every device in one request, the device series are merged
+    // and the totals summed up locally
     AggregateRequest request = new AggregateRequest.Builder()
      .setDataType(HealthConstants.StepCount.HEALTH_DATA_TYPE)
      .addFunction(AggregateFunction.SUM, HealthConstants.StepCount.COUNT, ALIAS_TOTAL_COUNT)
      .addFunction(AggregateFunction.SUM, HealthConstants.StepCount.CALORIE, HealthConstants.StepCount.CALORIE)
      .addGroup(HealthConstants.StepCount.DEVICE_UUID, ALIAS_DEVICE_UUID)
+     .setTimeGroup(TimeGroupUnit.MINUTELY, 10, HealthConstants.StepCount.START_TIME,
+      HealthConstants.StepCount.TIME_OFFSET, ALIAS_BINNING_TIME)
      .setLocalTimeRange(HealthConstants.StepCount.START_TIME, HealthConstants.StepCount.TIME_OFFSET,
       startTime, startTime + ONE_DAY)
-     .setSort(ALIAS_TOTAL_COUNT, SortOrder.DESC)
+     .setSort(ALIAS_BINNING_TIME, SortOrder.ASC)
      .build();
 
     try {
       mResolver.aggregate(request).setResultListener(result -> {
-        int totalCount = 0;
-        float totalCalories = 0;
-        String deviceUuid = null;
+        Map<String, StepBinSeries> deviceBinSeries = new LinkedHashMap<>();
+        TimeZone timeZone = TimeZone.getDefault();
 
         try {
-          Iterator<HealthData> iterator = result.iterator();
-          if (iterator.hasNext()) {
-            HealthData data = iterator.next();
-            totalCount = data.getInt(ALIAS_TOTAL_COUNT);
-            totalCalories += data.getFloat(HealthConstants.StepCount.CALORIE);
-            deviceUuid = data.getString(ALIAS_DEVICE_UUID);
+          for (HealthData data : result) {
+            String deviceUuid = data.getString(ALIAS_DEVICE_UUID);
+            String binningTime = data.getString(ALIAS_BINNING_TIME);
+            if (deviceUuid == null || binningTime == null) {
+              continue;
+            }
+
+            StepBinSeries binSeries = deviceBinSeries.get(deviceUuid);
+            if (binSeries == null) {
+              binSeries = new StepBinSeries();
+              deviceBinSeries.put(deviceUuid, binSeries);
+            }
+            binSeries.add(
+             DateUtil.parseLocalDateTime(binningTime, timeZone),
+             data.getInt(ALIAS_TOTAL_COUNT),
+             data.getFloat(HealthConstants.StepCount.CALORIE),
+             0
+            );
           }
         } finally {
           result.close();
         }
 
-        if (mObserver != null) {
-          mObserver.onChanged(startTime, totalCount, totalCalories);
-        }
-
-        if (deviceUuid != null) {
-          readStepCountBinning(startTime, deviceUuid);
-        }
+        StepBinSeries binSeries = mDeviceBinMerger.merge(deviceBinSeries);
+        postDayRead(startTime, binSeries.getTotalCount(), binSeries.getTotalCalories(), binSeries);
       });
     } catch (Exception e) {
       Log.e(TAG, "Getting step count fails.", e);
     }
   }
 
+  // Blocking read of a single past day, run on READ_EXECUTOR by requestDailyStepCount
   private void readStepDailyTrend(final long startTime) {
     Log.i(TAG, " Read Step Count Trend : " + startTime);
 
@@ -183,217 +256,330 @@ public class StepCountReader {
      .setFilter(filter)
      .build();
 
-    try {
-      mResolver.read(request).setResultListener(result -> {
-        int totalCount = 0;
-        float totalCalories = 0;
-        List<StepBinningData> binningDataList = Collections.emptyList();
-
-        try {
-          Iterator<HealthData> iterator = result.iterator();
-          if (iterator.hasNext()) {
-            HealthData data = iterator.next();
-            totalCount = data.getInt(PROPERTY_COUNT);
-            totalCalories = data.getFloat(HealthConstants.StepCount.CALORIE);
-            byte[] binningData = data.getBlob(PROPERTY_BINNING_DATA);
-            binningDataList = getBinningData(binningData, startTime);
-          }
-        } finally {
-          result.close();
-        }
+    int totalCount = 0;
+    float totalCalories = 0;
+    long contentHash = 0;
+    StepBinSeries binSeries = new StepBinSeries(0);
 
-        if (mObserver != null) {
-          mObserver.onChanged(startTime, totalCount, totalCalories);
-          mObserver.onBinningDataChanged(totalCount, totalCalories, binningDataList);
+    try {
+      HealthDataResolver.ReadResult result = mResolver.read(request).await();
+      try {
+        Iterator<HealthData> iterator = result.iterator();
+        if (iterator.hasNext()) {
+          HealthData data = iterator.next();
+          totalCount = data.getInt(PROPERTY_COUNT);
+          totalCalories = data.getFloat(HealthConstants.StepCount.CALORIE);
+          byte[] binningData = data.getBlob(PROPERTY_BINNING_DATA);
+          contentHash = getContentHash(binningData);
+          binSeries = getBinningData(binningData, startTime);
         }
-
-      });
+      } finally {
+        result.close();
+      }
     } catch (Exception e) {
       Log.e(TAG, "Getting daily step trend fails.", e);
+      return;
+    }
+
+    if (mCache != null) {
+      mCache.put(startTime, totalCount, totalCalories, contentHash, binSeries);
     }
+
+    postDayRead(startTime, totalCount, totalCalories, binSeries);
   }
 
+  // Streams the range day by day to the observer in day order, followed by onRangeReadComplete
   public void readStepDataForRange(final long startTime, final long endTime) {
     Log.i(TAG, " Read Step Range : " + startTime + "::" + endTime);
 
-    String[] stepProperties = new String[]{
-     PROPERTY_COUNT,
-     PROPERTY_BINNING_DATA,
-     HealthConstants.StepCount.CALORIE,
-     HealthConstants.StepCount.DISTANCE
-    };
-
-    List<StepBinningData> binningDataList = new ArrayList<>();
-
-    long startTimeLoop = startTime;
     int totalCount = 0;
     float totalCalories = 0.0f;
+    int readCount = 0;
+    int dayCount = 0;
+
+    // Keep up to mMaxInFlightReads chunk reads running while the oldest one is collected,
+    // so IPC and blob decoding of different chunks overlap. Chunks are collected in order.
+    ArrayDeque<Future<RangeChunk>> inFlightReads = new ArrayDeque<>();
+    ArrayDeque<long[]> inFlightRanges = new ArrayDeque<>();
+    long nextChunkStartTime = startTime;
+
+    while (nextChunkStartTime < endTime || !inFlightReads.isEmpty()) {
+      while (nextChunkStartTime < endTime && inFlightReads.size() < mMaxInFlightReads) {
+        final long chunkStartTime = nextChunkStartTime;
+        final long chunkEndTime = Math.min(chunkStartTime + mRangeChunkDays * ONE_DAY, endTime);
+        inFlightReads.add(READ_EXECUTOR.submit(() -> readRangeChunk(chunkStartTime, chunkEndTime)));
+        inFlightRanges.add(new long[]{chunkStartTime, chunkEndTime});
+        nextChunkStartTime = chunkEndTime;
+      }
 
-    while (startTimeLoop < endTime) {
-
-      Filter filter = Filter.and(
-       Filter.eq(PROPERTY_TIME, startTimeLoop),
-       Filter.eq("source_type", -2)  // filtering source type "combined(-2)"
-      );
-
-      ReadRequest request = new ReadRequest.Builder()
-       .setDataType(STEP_SUMMARY_DATA_TYPE_NAME)
-       .setProperties(stepProperties)
-       .setFilter(filter)
-       .build();
-
-      HealthDataResolver.ReadResult responseData = mResolver.read(request).await();
+      RangeChunk chunk;
+      long[] chunkRange = inFlightRanges.remove();
       try {
-        Iterator<HealthData> iterator = responseData.iterator();
-        if (iterator.hasNext()) {
-          HealthData data = iterator.next();
-          totalCount += data.getInt(PROPERTY_COUNT);
-          totalCalories += data.getFloat(HealthConstants.StepCount.CALORIE);
-          byte[] binningData = data.getBlob(PROPERTY_BINNING_DATA);
+        chunk = inFlightReads.remove().get();
+      } catch (ExecutionException e) {
+        Log.e(TAG, "Reading step range chunk fails.", e.getCause());
+        mObserver.onRangeReadFailed(chunkRange[0], chunkRange[1]);
+        continue;
+      } catch (InterruptedException e) {
+        for (Future<RangeChunk> inFlightRead : inFlightReads) {
+          inFlightRead.cancel(true);
+        }
+        Thread.currentThread().interrupt();
+        break;
+      }
 
-          binningDataList.addAll(getBinningData(binningData, startTimeLoop));
+      readCount++;
+      for (DayTrend day : chunk.days) {
+        dayCount++;
+        totalCount += day.count;
+        totalCalories += day.calories;
+        if (day.isUnchanged) {
+          mObserver.onDayUnchanged(day.dayTime, day.count, day.calories, day.contentHash);
+        } else {
+          mObserver.onDayBinningDataRead(day.dayTime, day.count, day.calories, day.contentHash, day.binSeries);
         }
-      } catch (Exception e) {
-        e.printStackTrace();
       }
-      responseData.close();
-      startTimeLoop += StepCountReader.ONE_DAY;
     }
 
-    Collections.sort(binningDataList, (o1, o2) -> {
-      Long time1 = o1.getTime();
-      Long time2 = o2.getTime();
-      return time1.compareTo(time2);
-    });
-
-    Log.i(TAG, "readStepDataForRange: " + binningDataList.size());
+    Log.i(TAG, "readStepDataForRange: " + dayCount + " days in " + readCount + " reads");
     Log.i(TAG, "totalCount: " + totalCount);
 
     mObserver.onChanged(startTime, totalCount, totalCalories);
-    mObserver.onBinningDataChanged(totalCount, totalCalories, binningDataList);
+    mObserver.onRangeReadComplete(startTime, endTime, totalCount, totalCalories);
   }
 
-  private void readStepCountBinning(final long startTime, String deviceUuid) {
-    Log.i(TAG, "Read Step Count Bin for Today : " + startTime);
+  // Daily trends in [chunkStartTime, chunkEndTime), from the cache where fresh and from Samsung Health otherwise
+  private RangeChunk readRangeChunk(long chunkStartTime, long chunkEndTime) {
+    Map<Long, Long> uploadedHashes = mUploadedDayHashes != null
+     ? mUploadedDayHashes.getUploadedHashes(chunkStartTime, chunkEndTime)
+     : Collections.emptyMap();
+
+    TreeMap<Long, DayTrend> days = new TreeMap<>();
+    if (mCache != null) {
+      for (StepTrendCache.Entry entry : mCache.getFresh(chunkStartTime, chunkEndTime)) {
+        DayTrend day = new DayTrend(entry);
+        day.isUnchanged = isUnchanged(uploadedHashes, day.dayTime, day.contentHash);
+        days.put(entry.dayTime, day);
+      }
+    }
 
-    Filter filter = Filter.eq(HealthConstants.StepCount.DEVICE_UUID, deviceUuid);
+    // Only read the span of days the cache could not serve
+    long readStartTime = chunkStartTime;
+    while (readStartTime < chunkEndTime && days.containsKey(readStartTime)) {
+      readStartTime += ONE_DAY;
+    }
+    long readEndTime = chunkEndTime;
+    while (readEndTime > readStartTime && days.containsKey(readEndTime - ONE_DAY)) {
+      readEndTime -= ONE_DAY;
+    }
 
-    // Get 10 minute binning data of a particular device
-    AggregateRequest request = new AggregateRequest.Builder()
-     .setDataType(HealthConstants.StepCount.HEALTH_DATA_TYPE)
-     .addFunction(AggregateFunction.SUM, HealthConstants.StepCount.COUNT, ALIAS_TOTAL_COUNT)
-     .addFunction(AggregateFunction.SUM, HealthConstants.StepCount.CALORIE, HealthConstants.StepCount.CALORIE)
-     .setTimeGroup(TimeGroupUnit.MINUTELY, 10, HealthConstants.StepCount.START_TIME,
-      HealthConstants.StepCount.TIME_OFFSET, ALIAS_BINNING_TIME)
-     .setLocalTimeRange(HealthConstants.StepCount.START_TIME, HealthConstants.StepCount.TIME_OFFSET,
-      startTime, startTime + ONE_DAY)
+    if (readStartTime < readEndTime) {
+      for (DayTrend day : readDayTrends(readStartTime, readEndTime, uploadedHashes)) {
+        if (!days.containsKey(day.dayTime)) {
+          days.put(day.dayTime, day);
+          if (mCache != null && !day.isUnchanged) {
+            mCache.put(day.dayTime, day.count, day.calories, day.contentHash, day.binSeries);
+          }
+        }
+      }
+
+      if (mCache != null) {
+        // Remember days without a record as empty, so they are not read again.
+        // Only reached once the whole span has been read, a failed read throws before
+        for (long dayTime = readStartTime; dayTime < readEndTime; dayTime += ONE_DAY) {
+          if (!days.containsKey(dayTime)) {
+            mCache.put(dayTime, 0, 0, 0, new StepBinSeries(0));
+          }
+        }
+      }
+    }
+
+    RangeChunk chunk = new RangeChunk();
+    for (DayTrend day : days.values()) {
+      if (day.isUnchanged || day.count > 0 || !day.binSeries.isEmpty()) {
+        chunk.days.add(day);
+      }
+    }
+    return chunk;
+  }
+
+  /*
+   * Step count of each day with data in [startTime, endTime), keyed by day_time, without the binning data.
+   * Blocks until Samsung Health answers, so it must not run on the main thread.
+   */
+  Map<Long, Integer> readDailyTotals(long startTime, long endTime) {
+    Filter filter = Filter.and(
+     Filter.greaterThanEquals(PROPERTY_TIME, startTime),
+     Filter.lessThan(PROPERTY_TIME, endTime),
+     Filter.eq("source_type", -2)  // filtering source type "combined(-2)"
+    );
+
+    ReadRequest request = new ReadRequest.Builder()
+     .setDataType(STEP_SUMMARY_DATA_TYPE_NAME)
+     .setProperties(new String[]{PROPERTY_TIME, PROPERTY_COUNT})
      .setFilter(filter)
-     .setSort(ALIAS_BINNING_TIME, SortOrder.ASC)
+     .setSort(PROPERTY_TIME, SortOrder.ASC)
      .build();
 
-    try {
-      mResolver.aggregate(request).setResultListener(result -> {
+    Map<Long, Integer> dailyTotals = new LinkedHashMap<>();
 
-        List<StepBinningData> binningCountArray = new ArrayList<>();
+    HealthDataResolver.ReadResult responseData = mResolver.read(request).await();
+    try {
+      for (HealthData data : responseData) {
+        long dayTime = data.getLong(PROPERTY_TIME);
+        // Only the first combined record of a day is used, same as a single day read
+        if (!dailyTotals.containsKey(dayTime)) {
+          dailyTotals.put(dayTime, data.getInt(PROPERTY_COUNT));
+        }
+      }
+    } finally {
+      responseData.close();
+    }
 
-        try {
-          for (HealthData data : result) {
-            String binningTime = data.getString(ALIAS_BINNING_TIME);
-            int binningCount = data.getInt(ALIAS_TOTAL_COUNT);
-            float binningCalories = data.getFloat(HealthConstants.StepCount.CALORIE);
-
-            if (binningTime != null) {
-              SimpleDateFormat dFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
-              Date binDate = new Date();
-              try {
-                binDate = dFormat.parse(binningTime);
-              } catch (ParseException e) {
-                e.printStackTrace();
-              }
-
-              binningCountArray.add(new StepBinningData(binDate.getTime(), binningCount, binningCalories, 0));
-            }
-          }
+    return dailyTotals;
+  }
 
-          if (mObserver != null) {
-            mObserver.onBinningDataChanged(binningCountArray);
-          }
+  // day_time of the first day Samsung Health has steps for, -1 when it has none. Blocks like readDailyTotals
+  long readEarliestDayTime() {
+    ReadRequest request = new ReadRequest.Builder()
+     .setDataType(STEP_SUMMARY_DATA_TYPE_NAME)
+     .setProperties(new String[]{PROPERTY_TIME})
+     .setFilter(Filter.eq("source_type", -2))  // filtering source type "combined(-2)"
+     .setSort(PROPERTY_TIME, SortOrder.ASC)
+     .setResultCount(0, 1)
+     .build();
 
-        } finally {
-          result.close();
-        }
-      });
-    } catch (Exception e) {
-      Log.e(TAG, "Getting step binning data fails.", e);
+    HealthDataResolver.ReadResult responseData = mResolver.read(request).await();
+    try {
+      for (HealthData data : responseData) {
+        return data.getLong(PROPERTY_TIME);
+      }
+    } finally {
+      responseData.close();
     }
+    return -1;
   }
 
-  public interface StepCountObserver {
-    void onChanged(long startTime, int count, float totalCalories);
+  /*
+   * Blocking read and decode of the daily trends in [startTime, endTime).
+   * Days whose binning_data hash matches the last uploaded one are not decoded.
+   * A failing record fails the whole read, so no day after it is taken for a day without data.
+   */
+  private List<DayTrend> readDayTrends(long startTime, long endTime, Map<Long, Long> uploadedHashes) {
+    String[] stepProperties = new String[]{
+     PROPERTY_TIME,
+     PROPERTY_COUNT,
+     PROPERTY_BINNING_DATA,
+     HealthConstants.StepCount.CALORIE,
+     HealthConstants.StepCount.DISTANCE
+    };
 
-    void onBinningDataChanged(int totalStepCount, float totalCalories, List<StepBinningData> binningCountList);
+    Filter filter = Filter.and(
+     Filter.greaterThanEquals(PROPERTY_TIME, startTime),
+     Filter.lessThan(PROPERTY_TIME, endTime),
+     Filter.eq("source_type", -2)  // filtering source type "combined(-2)"
+    );
 
-    default void onBinningDataChanged(List<StepBinningData> binningCountList) {
-      Log.i(TAG, "onBinningDataChanged Size: " + binningCountList.size());
-      Log.i(TAG, "onBinningDataChanged toString: " + binningCountList.toString());
+    ReadRequest request = new ReadRequest.Builder()
+     .setDataType(STEP_SUMMARY_DATA_TYPE_NAME)
+     .setProperties(stepProperties)
+     .setFilter(filter)
+     .setSort(PROPERTY_TIME, SortOrder.ASC)
+     .build();
+
+    List<DayTrend> days = new ArrayList<>();
+
+    HealthDataResolver.ReadResult responseData = mResolver.read(request).await();
+    try {
+      long lastDayTime = -1;
+      for (HealthData data : responseData) {
+        long dayTime = data.getLong(PROPERTY_TIME);
+        if (dayTime == lastDayTime) {
+          // Only the first combined record of a day is used, same as a single day read
+          continue;
+        }
+        lastDayTime = dayTime;
+
+        DayTrend day = new DayTrend(dayTime);
+        day.count = data.getInt(PROPERTY_COUNT);
+        day.calories = data.getFloat(HealthConstants.StepCount.CALORIE);
+        byte[] binningData = data.getBlob(PROPERTY_BINNING_DATA);
+        day.contentHash = getContentHash(binningData);
+        day.isUnchanged = isUnchanged(uploadedHashes, dayTime, day.contentHash);
+        if (!day.isUnchanged) {
+          day.binSeries = getBinningData(binningData, dayTime);
+        }
+
+        days.add(day);
+      }
+    } finally {
+      responseData.close();
     }
+
+    return days;
   }
 
-  public static class StepBinningData implements Comparator<StepBinningData> {
-    public final int count;
-    public long time;
-    private float calorie;
-    private float distance;
+  interface UploadedDayHashes {
+    // Content hash of the last upload of each day in [startTime, endTime) that has one
+    Map<Long, Long> getUploadedHashes(long startTime, long endTime);
+  }
 
-    public StepBinningData(long time, int count) {
-      this.time = time;
-      this.count = count;
-    }
+  public interface StepCountObserver {
+    void onChanged(long startTime, int count, float totalCalories);
 
-    public StepBinningData(long time, int count, float calorie, float distance) {
-      this.time = time;
-      this.count = count;
-      this.calorie = calorie;
-      this.distance = distance;
+    // Called with the bins of a single day read, readStepDataForRange does not call it
+    default void onBinningDataChanged(int totalStepCount, float totalCalories, StepBinSeries binSeries) {
+      Log.i(TAG, "onBinningDataChanged totalCount: " + totalStepCount);
     }
 
-    public int getCount() {
-      return count;
+    default void onBinningDataChanged(StepBinSeries binSeries) {
+      Log.i(TAG, "onBinningDataChanged Size: " + binSeries.size());
+      Log.i(TAG, "onBinningDataChanged toString: " + binSeries.toString());
     }
 
-    public long getTime() {
-      return time;
+    // Called once per day with data by readStepDataForRange, in day order
+    default void onDayBinningDataRead(long dayTime, int count, float calories, long contentHash, StepBinSeries binSeries) {
+      Log.i(TAG, "onDayBinningDataRead " + dayTime + " Size: " + binSeries.size());
     }
 
-    public float getCalorie() {
-      return calorie;
+    // Called instead of onDayBinningDataRead for days whose content matches the last uploaded one
+    default void onDayUnchanged(long dayTime, int count, float calories, long contentHash) {
+      Log.i(TAG, "onDayUnchanged " + dayTime);
     }
 
-    public float getDistance() {
-      return distance;
+    // Called by readStepDataForRange for the days of a chunk that could not be read
+    default void onRangeReadFailed(long startTime, long endTime) {
+      Log.e(TAG, "onRangeReadFailed: " + startTime + "::" + endTime);
     }
 
-    @Override
-    public int compare(StepBinningData o1, StepBinningData o2) {
-      Long time1 = o1.getTime();
-      Long time2 = o2.getTime();
-      return time1.compareTo(time2);
+    // Called after the last day of readStepDataForRange has been delivered
+    default void onRangeReadComplete(long startTime, long endTime, int totalStepCount, float totalCalories) {
+      Log.i(TAG, "onRangeReadComplete totalCount: " + totalStepCount);
     }
+  }
+
+  private static class RangeChunk {
+    final List<DayTrend> days = new ArrayList<>();
+  }
+
+  private static class DayTrend {
+    final long dayTime;
+    int count;
+    float calories;
+    long contentHash;
+    boolean isUnchanged;
+    StepBinSeries binSeries = new StepBinSeries(0);
 
-    @Override
-    public boolean equals(@Nullable Object obj) {
-      StepBinningData binItem = (StepBinningData) obj;
-      return binItem.getTime() == this.getTime() && binItem.getCount() == this.getCount();
+    DayTrend(long dayTime) {
+      this.dayTime = dayTime;
     }
 
-    @Override
-    public String toString() {
-      return "StepBinningData{" +
-       "count=" + count +
-       ", time=" + time +
-       ", calorie=" + calorie +
-       ", distance=" + distance +
-       '}';
+    DayTrend(StepTrendCache.Entry entry) {
+      this.dayTime = entry.dayTime;
+      this.count = entry.count;
+      this.calories = entry.calories;
+      this.contentHash = entry.contentHash;
+      this.binSeries = entry.binSeries;
     }
   }
 }
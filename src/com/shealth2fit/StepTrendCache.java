@@ -0,0 +1,127 @@
+package com.shealth2fit;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.shealth2fit.util.DateUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.shealth2fit.StepCountReader.ONE_DAY;
+import static com.shealth2fit.SyncDatabase.COLUMN_BINS;
+import static com.shealth2fit.SyncDatabase.COLUMN_CALORIE;
+import static com.shealth2fit.SyncDatabase.COLUMN_CONTENT_HASH;
+import static com.shealth2fit.SyncDatabase.COLUMN_COUNT;
+import static com.shealth2fit.SyncDatabase.COLUMN_DAY_TIME;
+import static com.shealth2fit.SyncDatabase.COLUMN_FETCHED_AT;
+import static com.shealth2fit.SyncDatabase.TABLE_DAY_TREND;
+
+/*
+ * On-device copy of the Samsung Health daily step trends, keyed by day_time.
+ * Today and yesterday are never served from the cache since they can still change,
+ * older days are revalidated once their copy is older than REVALIDATE_INTERVAL.
+ */
+class StepTrendCache {
+  private static final long REVALIDATE_INTERVAL = TimeUnit.DAYS.toMillis(7);
+  private static final String[] ENTRY_COLUMNS = new String[]{
+   COLUMN_DAY_TIME, COLUMN_COUNT, COLUMN_CALORIE, COLUMN_CONTENT_HASH, COLUMN_BINS
+  };
+
+  private static StepTrendCache sInstance;
+
+  private final SyncDatabase mDatabase;
+
+  private StepTrendCache(SyncDatabase database) {
+    mDatabase = database;
+  }
+
+  static synchronized StepTrendCache getInstance(Context context) {
+    if (sInstance == null) {
+      sInstance = new StepTrendCache(SyncDatabase.getInstance(context));
+    }
+    return sInstance;
+  }
+
+  // Days before yesterday are settled enough to be kept
+  static boolean isCacheable(long dayTime) {
+    return dayTime < DateUtil.getTodayStartUtcTime() - ONE_DAY;
+  }
+
+  Entry getFresh(long dayTime) {
+    List<Entry> entries = getFresh(dayTime, dayTime + ONE_DAY);
+    return entries.isEmpty() ? null : entries.get(0);
+  }
+
+  // Fresh entries with day_time in [startTime, endTime), in day order
+  List<Entry> getFresh(long startTime, long endTime) {
+    List<Entry> entries = new ArrayList<>();
+    long cacheableEndTime = Math.min(endTime, DateUtil.getTodayStartUtcTime() - ONE_DAY);
+    if (startTime >= cacheableEndTime) {
+      return entries;
+    }
+
+    String selection = COLUMN_DAY_TIME + " >= ? AND " + COLUMN_DAY_TIME + " < ? AND " + COLUMN_FETCHED_AT + " >= ?";
+    String[] selectionArgs = new String[]{
+     String.valueOf(startTime),
+     String.valueOf(cacheableEndTime),
+     String.valueOf(System.currentTimeMillis() - REVALIDATE_INTERVAL)
+    };
+
+    try (Cursor cursor = mDatabase.getReadableDatabase().query(TABLE_DAY_TREND, ENTRY_COLUMNS, selection,
+     selectionArgs, null, null, COLUMN_DAY_TIME + " ASC")) {
+      while (cursor.moveToNext()) {
+        entries.add(new Entry(
+         cursor.getLong(0),
+         cursor.getInt(1),
+         cursor.getFloat(2),
+         cursor.getLong(3),
+         StepBinSeries.fromBytes(cursor.getBlob(4))
+        ));
+      }
+    }
+    return entries;
+  }
+
+  void put(long dayTime, int count, float calories, long contentHash, StepBinSeries binSeries) {
+    if (!isCacheable(dayTime)) {
+      return;
+    }
+
+    ContentValues values = new ContentValues();
+    values.put(COLUMN_DAY_TIME, dayTime);
+    values.put(COLUMN_COUNT, count);
+    values.put(COLUMN_CALORIE, calories);
+    values.put(COLUMN_CONTENT_HASH, contentHash);
+    values.put(COLUMN_BINS, binSeries.toBytes());
+    values.put(COLUMN_FETCHED_AT, System.currentTimeMillis());
+
+    mDatabase.getWritableDatabase().insertWithOnConflict(TABLE_DAY_TREND, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+  }
+
+  // Drops the copies of the days in [startTime, endTime), their next read goes to Samsung Health
+  void invalidate(long startTime, long endTime) {
+    mDatabase.getWritableDatabase().delete(TABLE_DAY_TREND,
+     COLUMN_DAY_TIME + " >= ? AND " + COLUMN_DAY_TIME + " < ?",
+     new String[]{String.valueOf(startTime), String.valueOf(endTime)});
+  }
+
+  static class Entry {
+    final long dayTime;
+    final int count;
+    final float calories;
+    final long contentHash;
+    final StepBinSeries binSeries;
+
+    Entry(long dayTime, int count, float calories, long contentHash, StepBinSeries binSeries) {
+      this.dayTime = dayTime;
+      this.count = count;
+      this.calories = calories;
+      this.contentHash = contentHash;
+      this.binSeries = binSeries;
+    }
+  }
+}
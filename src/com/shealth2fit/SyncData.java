@@ -1,31 +1,92 @@
 package com.shealth2fit;
 
 import android.content.Context;
-import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
-import com.google.common.collect.Lists;
-import com.samsung.android.sdk.healthdata.HealthConnectionErrorResult;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.samsung.android.sdk.healthdata.HealthDataStore;
-import com.shealth2fit.util.GoogleFitUtil;
+import com.shealth2fit.util.GoogleFitWriter;
 import com.shealth2fit.util.NotificationUtil;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 
+import static com.shealth2fit.StepCountReader.ONE_DAY;
 import static com.shealth2fit.util.DateUtil.getDateStringFromUTCMillis;
+import static com.shealth2fit.util.DateUtil.getLocalDayStartFromUTC;
 import static com.shealth2fit.util.NotificationUtil.SYNC_WORKER_CHANNEL_ID;
 import static com.shealth2fit.util.SamsungHealthUtil.calorieToString;
 
+/*
+ * One sync job: connect to Samsung Health, read the pending days, upload them, disconnect.
+ * Started by SyncEngine, which provides the threads.
+ */
 class SyncData {
 
+  // Steps of a job, logged as it goes through them
+  enum State {
+    CONNECTING,
+    READING,
+    UPLOADING,
+    DISCONNECTING,
+    COMPLETE
+  }
+
+  enum Outcome {
+    // Every pending day is in Google Fit
+    SYNCED,
+    // Every pending day was read, some batches wait in the upload outbox for their retry
+    QUEUED,
+    // Some days could not be read or uploaded, they stay pending in the ledger
+    FAILED
+  }
+
+  interface ProgressListener {
+    // Called on the sync thread after each day read and once the uploads are done, SyncProgressMonitor gets the same
+    void onProgress(SyncProgress progress);
+  }
+
   private final static String TAG = "SyncData";
+  private static final int MAX_IN_FLIGHT_UPLOADS = 4;
   private final Context mContext;
   private final long mUTCStartTimeStamp;
   private final long mUTCEndTimeStamp;
   private String mLocalEndDateString;
   private String mLocalStartDateString;
-  private HealthDataStore mStore;
+  private HealthConnectionManager.Lease mStoreLease;
   private StepCountReader mReporter;
+  private final StepBinSeries mPendingUpload = new StepBinSeries(AdaptiveBatcher.MAX_BATCH_SIZE);
+  // Days with bins still queued, then days whose bins are all submitted and waiting on their uploads
+  private final ArrayDeque<PendingDay> mPendingDays = new ArrayDeque<>();
+  private final ArrayDeque<PendingDay> mUploadingDays = new ArrayDeque<>();
+  private final SyncLedger mLedger;
+  private final AdaptiveBatcher mBatcher;
+  // Days synced again, like today on every periodic sync, only get their new and changed bins written,
+  // and still end up with a single copy of each bin in Google Fit
+  private GoogleFitWriter.WriteMode mWriteMode = GoogleFitWriter.WriteMode.RECONCILE;
+  private UploadPipeline mUploadPipeline;
+  private final SettableFuture<Outcome> mResult = SettableFuture.create();
+  // Bins ever queued and ever submitted during this sync, the pending day indexes count from the sync start
+  private int mQueuedBinCount;
+  private int mSubmittedBinCount;
+  private boolean mHasReadFailure;
+  private boolean mIsAborted;
+  private boolean mIsSuccessful;
+  private int mSyncedStepCount;
+  private ProgressListener mProgressListener;
+  private int mTotalDays;
+  private int mReadDays;
+  private int mReadRangeDays;
+  private long mSyncStartTime;
+  private boolean mHasProgressNotification;
+  private float mSyncedCalories;
 
   SyncData(Context context, long mUTCStartTime, long mUTCEndTime) {
     mContext = context;
@@ -33,122 +94,380 @@ class SyncData {
     mUTCEndTimeStamp = mUTCEndTime;
     mLocalStartDateString = getDateStringFromUTCMillis(mUTCStartTime);
     mLocalEndDateString = getDateStringFromUTCMillis(mUTCEndTime);
+    mLedger = SyncLedger.getInstance(context);
+    mBatcher = AdaptiveBatcher.getInstance(context);
+  }
+
+  void setWriteMode(GoogleFitWriter.WriteMode writeMode) {
+    mWriteMode = writeMode;
+  }
+
+  void setProgressListener(ProgressListener progressListener) {
+    mProgressListener = progressListener;
   }
 
-  void start() {
+  // Jobs whose runner shows a progress notification post no start or success notification of their own
+  void setHasProgressNotification(boolean hasProgressNotification) {
+    mHasProgressNotification = hasProgressNotification;
+  }
+
+  /*
+   * Starts the job on a lease of the shared connection, the sync itself runs on workExecutor.
+   * The future completes with the outcome of the job once the lease is released.
+   */
+  ListenableFuture<Outcome> start(HealthConnectionManager connectionManager, Executor workExecutor) {
     NotificationUtil.createNotificationChannel(mContext);
 
-    NotificationUtil.sendNotification(
-     mContext,
-     "Starting activity sync",
-     mLocalStartDateString + "-" + mLocalEndDateString,
-     SYNC_WORKER_CHANNEL_ID,
-     true
-    );
+    if (!mHasProgressNotification) {
+      NotificationUtil.sendNotification(
+       mContext,
+       "Starting activity sync",
+       mLocalStartDateString + "-" + mLocalEndDateString,
+       SYNC_WORKER_CHANNEL_ID,
+       true
+      );
+    }
 
     Log.i(TAG, "Sync Start for " + mLocalStartDateString + "-" + mLocalEndDateString);
 
+    setState(State.CONNECTING);
+    mStoreLease = connectionManager.acquire();
+    mReporter = new StepCountReader(connectionManager.getStore(), mStepCountObserver, StepTrendCache.getInstance(mContext));
+    mReporter.setUploadedDayHashes(mLedger);
+
+    Futures.addCallback(mStoreLease.awaitConnected(), new FutureCallback<HealthDataStore>() {
+      @Override
+      public void onSuccess(HealthDataStore store) {
+        Log.i(TAG, "onConnected: Store Connected");
+        sync();
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        Log.i(TAG, "Store Connection Failed", t);
+        NotificationUtil.sendNotification(
+         mContext,
+         "Samsung Health Connection Failed",
+         mLocalStartDateString + "-" + mLocalEndDateString,
+         SYNC_WORKER_CHANNEL_ID
+        );
+        finish(Outcome.FAILED);
+      }
+    }, workExecutor);
+    return mResult;
+  }
+
+  private void sync() {
+    // Days another job is syncing are left to it, this job waits for its outcome once its own days are done
+    DayLeaseTable.Claim claim = DayLeaseTable.getInstance().claim(mUTCStartTimeStamp, mUTCEndTimeStamp);
     try {
-      Thread storeConnectThread = new Thread() {
-        @Override
-        public void run() {
-          Looper.prepare();
-          mStore = new HealthDataStore(mContext, mStoreConnectionListener);
+      mSyncStartTime = SystemClock.elapsedRealtime();
+      mUploadPipeline = new UploadPipeline(new GoogleFitWriter(mContext, mWriteMode), UploadOutbox.getInstance(mContext),
+       mBatcher, MAX_IN_FLIGHT_UPLOADS);
 
-          mStore.connectService();
+      setState(State.READING);
+      // Only the days the ledger does not know as synced are read and uploaded
+      DayRangeSet pendingDays = new DayRangeSet();
+      for (long[] pendingRange : mLedger.getPendingRanges(mUTCStartTimeStamp, mUTCEndTimeStamp)) {
+        pendingDays.add(pendingRange[0], pendingRange[1]);
+      }
+      pendingDays.removeAll(claim.getHeldDays());
+      List<long[]> pendingRanges = pendingDays.getRanges();
+      Log.i(TAG, "sync: " + pendingRanges.size() + " pending ranges");
+      for (long[] pendingRange : pendingRanges) {
+        mTotalDays += (int) ((pendingRange[1] - pendingRange[0]) / ONE_DAY);
+      }
 
-          mReporter = new StepCountReader(mStore, mStepCountObserver);
+      for (long[] pendingRange : pendingRanges) {
+        if (mIsAborted) {
+          break;
+        }
+        mLedger.markInProgress(pendingRange[0], pendingRange[1]);
+        mReporter.readStepDataForRange(pendingRange[0], pendingRange[1]);
+      }
+
+      setState(State.UPLOADING);
+      boolean isUploaded = false;
+      if (!mIsAborted) {
+        try {
+          isUploaded = mUploadPipeline.awaitCompletion();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          mIsAborted = true;
+        }
+      }
 
-          Looper.loop();
+      if (!mIsAborted) {
+        checkpointUploadedDays(true);
+        // Every upload has completed here, so the days of this job still in progress had nothing to upload
+        for (long[] pendingRange : pendingRanges) {
+          mLedger.markInProgressSynced(pendingRange[0], pendingRange[1]);
         }
-      };
+      }
+      reportProgress();
+      mBatcher.save();
+      if (mUploadPipeline.hasQueuedBatches()) {
+        OutboxWorker.schedule(mContext);
+      }
+      mIsSuccessful = isUploaded && !mHasReadFailure && !mIsAborted;
+    } catch (RuntimeException e) {
+      Log.e(TAG, "sync: failed", e);
+      mIsSuccessful = false;
+    } finally {
+      claim.release(mIsSuccessful);
+    }
 
-      storeConnectThread.start();
+    // The own days are released first, so two jobs waiting on each other's days cannot block each other
+    mIsSuccessful &= awaitHeldDays(claim);
 
-      storeConnectThread.join();
-    } catch (Exception e) {
-      e.printStackTrace();
+    Outcome outcome;
+    if (!mIsSuccessful) {
+      outcome = Outcome.FAILED;
+    } else if (mUploadPipeline.hasQueuedBatches()) {
+      outcome = Outcome.QUEUED;
+    } else {
+      outcome = Outcome.SYNCED;
     }
+
+    if (outcome == Outcome.SYNCED) {
+      if (!mHasProgressNotification) {
+        NotificationUtil.sendNotification(
+         mContext,
+         "Synced: " + mLocalStartDateString + "-" + mLocalEndDateString,
+         "Calories: " + calorieToString(mSyncedCalories) + " Steps: " + mSyncedStepCount,
+         SYNC_WORKER_CHANNEL_ID,
+         false
+        );
+      }
+    } else if (outcome == Outcome.QUEUED) {
+      NotificationUtil.sendNotification(
+       mContext,
+       "Sync Queued: " + mLocalStartDateString + "-" + mLocalEndDateString,
+       "Google Fit did not take every upload, they will be retried",
+       SYNC_WORKER_CHANNEL_ID,
+       false
+      );
+    } else {
+      NotificationUtil.sendNotification(
+       mContext,
+       "Sync Failed: " + mLocalStartDateString + "-" + mLocalEndDateString,
+       "Some days could not be synced and will be retried",
+       SYNC_WORKER_CHANNEL_ID,
+       false
+      );
+    }
+    finish(outcome);
   }
 
-  void startNoThread() {
-    NotificationUtil.createNotificationChannel(mContext);
+  // Waits for the jobs holding days of this range, true when all of them synced their days
+  private boolean awaitHeldDays(DayLeaseTable.Claim claim) {
+    boolean isSuccessful = true;
+    for (ListenableFuture<Boolean> heldLease : claim.getHeldLeases()) {
+      try {
+        isSuccessful &= heldLease.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      } catch (ExecutionException e) {
+        return false;
+      }
+    }
+    return isSuccessful;
+  }
 
-    NotificationUtil.sendNotification(
-     mContext,
-     "Starting activity sync",
-     mLocalStartDateString + "-" + mLocalEndDateString,
-     SYNC_WORKER_CHANNEL_ID,
-     false
-    );
+  private void finish(Outcome outcome) {
+    // The shared connection is closed by the connection manager once no lease needs it anymore
+    setState(State.DISCONNECTING);
+    mStoreLease.release();
+    SyncProgressMonitor.getInstance().remove(this);
+    setState(State.COMPLETE);
+    mResult.set(outcome);
+  }
 
-    Log.i(TAG, "Sync Start for " + mLocalStartDateString + "-" + mLocalEndDateString);
+  private void reportProgress() {
+    SyncProgress progress = new SyncProgress(mUTCStartTimeStamp, mUTCEndTimeStamp, mReadDays, mTotalDays,
+     mUploadPipeline.getUploadedBinCount(), SystemClock.elapsedRealtime() - mSyncStartTime);
+    SyncProgressMonitor.getInstance().update(this, progress);
+    if (mProgressListener != null) {
+      mProgressListener.onProgress(progress);
+    }
+  }
 
-    try {
-      mStore = new HealthDataStore(mContext, mStoreConnectionListener);
+  private void setState(State state) {
+    Log.i(TAG, mLocalStartDateString + "-" + mLocalEndDateString + ": " + state);
+  }
+
+  /*
+   * Submits every full batch of pending bins, and the remainder too when flushing, batches have the tuned size.
+   * Blocks while the pipeline is full, which keeps the reader from queueing bins faster than they upload.
+   */
+  private void uploadPending(boolean flush) {
+    int batchSize = mBatcher.getBatchSize();
+    int uploadCount = flush ? mPendingUpload.size() : mPendingUpload.size() - mPendingUpload.size() % batchSize;
+    if (uploadCount == 0 || mIsAborted) {
+      return;
+    }
+
+    int batchStartIndex = mSubmittedBinCount;
+    for (StepBinSeries partitionedStep : mPendingUpload.slice(0, uploadCount).partition(batchSize)) {
+      int batchEndIndex = batchStartIndex + partitionedStep.size();
+      List<PendingDay> batchDays = new ArrayList<>(2);
+      for (PendingDay pendingDay : mPendingDays) {
+        if (pendingDay.binStartIndex >= batchEndIndex) {
+          break;
+        }
+        if (pendingDay.binEndIndex > batchStartIndex) {
+          batchDays.add(pendingDay);
+        }
+      }
+
+      // Every pending bin belongs to a pending day, so a batch covers at least one
+      PendingDay firstDay = batchDays.get(0);
+      PendingDay lastDay = batchDays.get(batchDays.size() - 1);
+      long batchStartDayTime = firstDay.dayTime;
+      long batchEndDayTime = lastDay.dayTime + ONE_DAY;
+
+      // The batch owns the whole span of the days it holds entirely, a split day is cut at the next bin
+      long batchStartTime = firstDay.binStartIndex >= batchStartIndex
+       ? getLocalDayStartFromUTC(firstDay.dayTime)
+       : partitionedStep.getTime(0);
+      long batchEndTime = lastDay.binEndIndex <= batchEndIndex
+       ? getLocalDayStartFromUTC(lastDay.dayTime + ONE_DAY)
+       : mPendingUpload.getTime(batchEndIndex - mSubmittedBinCount);
 
-      mStore.connectService();
+      ListenableFuture<Boolean> upload;
+      try {
+        upload = mUploadPipeline.submit(partitionedStep, batchStartDayTime, batchEndDayTime, batchStartTime, batchEndTime);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        mIsAborted = true;
+        return;
+      }
+
+      // A day split over two batches is only synced once both of them are
+      for (PendingDay pendingDay : batchDays) {
+        pendingDay.uploads.add(upload);
+      }
+      batchStartIndex = batchEndIndex;
+    }
+    mPendingUpload.removeFirst(uploadCount);
+    mSubmittedBinCount += uploadCount;
 
-      mReporter = new StepCountReader(mStore, mStepCountObserver);
-    } catch (Exception e) {
-      e.printStackTrace();
+    while (!mPendingDays.isEmpty() && mPendingDays.peek().binEndIndex <= mSubmittedBinCount) {
+      mUploadingDays.add(mPendingDays.remove());
     }
+    checkpointUploadedDays(false);
   }
 
-  private final HealthDataStore.ConnectionListener mStoreConnectionListener = new HealthDataStore.ConnectionListener() {
-    @Override
-    public void onConnected() {
-      Log.i(TAG, "onConnected: Store Connected");
-      mReporter.readStepDataForRange(mUTCStartTimeStamp, mUTCEndTimeStamp);
+  /*
+   * Records the outcome of the days whose uploads have all completed, in day order.
+   * Without waiting this stops at the first day still uploading, so a checkpoint never skips ahead.
+   */
+  private void checkpointUploadedDays(boolean waitForUploads) {
+    while (!mUploadingDays.isEmpty()) {
+      PendingDay pendingDay = mUploadingDays.peek();
+      if (!waitForUploads && !pendingDay.isUploadDone()) {
+        break;
+      }
+      mUploadingDays.remove();
+
+      switch (pendingDay.getUploadStatus()) {
+        case SyncLedger.STATUS_SYNCED:
+          mLedger.markSynced(pendingDay.dayTime, pendingDay.contentHash, pendingDay.readTime);
+          break;
+        case SyncLedger.STATUS_QUEUED:
+          mLedger.markQueued(pendingDay.dayTime, pendingDay.contentHash, pendingDay.readTime);
+          break;
+        default:
+          mLedger.markFailed(pendingDay.dayTime, pendingDay.dayTime + ONE_DAY);
+          break;
+      }
     }
+  }
 
+  private final StepCountReader.StepCountObserver mStepCountObserver = new StepCountReader.StepCountObserver() {
     @Override
-    public void onConnectionFailed(HealthConnectionErrorResult healthConnectionErrorResult) {
-      Log.i(TAG, "Store Connection Failed");
-      NotificationUtil.sendNotification(
-       mContext,
-       "Samsung Health Connection Failed",
-       mLocalStartDateString + "-" + mLocalEndDateString,
-       SYNC_WORKER_CHANNEL_ID
-      );
+    public void onChanged(long startTime, int count, float totalCalories) {
+      Log.i(TAG, "onChanged: " + count + " calories " + totalCalories);
     }
 
     @Override
-    public void onDisconnected() {
-      Log.i(TAG, "onDisconnected: Store Disconnected");
+    public void onDayBinningDataRead(long dayTime, int count, float calories, long contentHash, StepBinSeries binSeries) {
+      mPendingUpload.addAll(binSeries);
+      mPendingDays.add(new PendingDay(dayTime, contentHash, System.currentTimeMillis(),
+       mQueuedBinCount, mQueuedBinCount + binSeries.size()));
+      mQueuedBinCount += binSeries.size();
+      uploadPending(false);
+      mReadDays++;
+      reportProgress();
     }
-  };
 
+    @Override
+    public void onDayUnchanged(long dayTime, int count, float calories, long contentHash) {
+      // Google Fit already has this content, nothing to upload
+      mLedger.markUnchanged(dayTime, contentHash);
+      mReadDays++;
+      reportProgress();
+    }
 
-  private final StepCountReader.StepCountObserver mStepCountObserver = new StepCountReader.StepCountObserver() {
     @Override
-    public void onChanged(long startTime, int count, float totalCalories) {
-      Log.i(TAG, "onChanged: " + count + " calories " + totalCalories);
+    public void onRangeReadFailed(long startTime, long endTime) {
+      mHasReadFailure = true;
+      mLedger.markFailed(startTime, endTime);
     }
 
     @Override
-    public void onBinningDataChanged(int totalStepCount, float totalCalories, List<StepCountReader.StepBinningData> sHealthRecordedSteps) {
-      NotificationUtil.sendNotification(
-       mContext,
-       "Fetched Data from Samsung Health",
-       mLocalStartDateString + "-" + mLocalEndDateString,
-       SYNC_WORKER_CHANNEL_ID,
-       true
-      );
+    public void onRangeReadComplete(long startTime, long endTime, int totalStepCount, float totalCalories) {
+      uploadPending(true);
+
+      // Days without data are not delivered, the whole range has been read now
+      mReadRangeDays += (int) ((endTime - startTime) / ONE_DAY);
+      mReadDays = mReadRangeDays;
+      reportProgress();
+      mSyncedStepCount += totalStepCount;
+      mSyncedCalories += totalCalories;
+    }
+  };
 
-      List<List<StepCountReader.StepBinningData>> partitionedSteps = Lists.partition(sHealthRecordedSteps, 900);
+  private static class PendingDay {
+    final long dayTime;
+    final long contentHash;
+    // Before any batch of the day is queued, so only outbox batches of earlier syncs are older
+    final long readTime;
+    final int binStartIndex;
+    final int binEndIndex;
+    final List<ListenableFuture<Boolean>> uploads = new ArrayList<>(2);
 
-      for (List<StepCountReader.StepBinningData> partitionedStep : partitionedSteps) {
-        GoogleFitUtil.insertMultiDataPoints(mContext, partitionedStep);
+    PendingDay(long dayTime, long contentHash, long readTime, int binStartIndex, int binEndIndex) {
+      this.dayTime = dayTime;
+      this.contentHash = contentHash;
+      this.readTime = readTime;
+      this.binStartIndex = binStartIndex;
+      this.binEndIndex = binEndIndex;
+    }
+
+    boolean isUploadDone() {
+      for (ListenableFuture<Boolean> upload : uploads) {
+        if (!upload.isDone()) {
+          return false;
+        }
       }
+      return true;
+    }
 
-      NotificationUtil.sendNotification(
-       mContext,
-       "Synced: " + mLocalStartDateString + "-" + mLocalEndDateString,
-       "Calories: " + calorieToString(totalCalories) + " Steps: " + totalStepCount,
-       SYNC_WORKER_CHANNEL_ID,
-       false
-      );
+    // Synced when every batch of the day is in Google Fit, queued when some wait in the outbox
+    int getUploadStatus() {
+      int status = SyncLedger.STATUS_SYNCED;
+      for (ListenableFuture<Boolean> upload : uploads) {
+        try {
+          if (!Futures.getDone(upload)) {
+            status = SyncLedger.STATUS_QUEUED;
+          }
+        } catch (ExecutionException e) {
+          return SyncLedger.STATUS_FAILED;
+        }
+      }
+      return status;
     }
-  };
+  }
 }
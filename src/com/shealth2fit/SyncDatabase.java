@@ -0,0 +1,105 @@
+package com.shealth2fit;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/* Local database holding the data kept between syncs */
+class SyncDatabase extends SQLiteOpenHelper {
+  private static final String DATABASE_NAME = "shealth2fit.db";
+  private static final int DATABASE_VERSION = 6;
+
+  static final String TABLE_DAY_TREND = "day_trend";
+  static final String COLUMN_DAY_TIME = "day_time";
+  static final String COLUMN_COUNT = "count";
+  static final String COLUMN_CALORIE = "calorie";
+  static final String COLUMN_BINS = "bins";
+  static final String COLUMN_FETCHED_AT = "fetched_at";
+
+  static final String TABLE_SYNC_LEDGER = "sync_ledger";
+  static final String COLUMN_STATUS = "status";
+  static final String COLUMN_CONTENT_HASH = "content_hash";
+  static final String COLUMN_UPDATED_AT = "updated_at";
+  static final String COLUMN_READ_AT = "read_at";
+
+  static final String TABLE_UPLOAD_OUTBOX = "upload_outbox";
+  static final String COLUMN_ID = "_id";
+  static final String COLUMN_START_DAY_TIME = "start_day_time";
+  static final String COLUMN_END_DAY_TIME = "end_day_time";
+  static final String COLUMN_START_TIME = "start_time";
+  static final String COLUMN_END_TIME = "end_time";
+  static final String COLUMN_ATTEMPTS = "attempts";
+  static final String COLUMN_NEXT_ATTEMPT_AT = "next_attempt_at";
+  static final String COLUMN_QUEUED_AT = "queued_at";
+
+  private static SyncDatabase sInstance;
+
+  private SyncDatabase(Context context) {
+    super(context, DATABASE_NAME, null, DATABASE_VERSION);
+  }
+
+  static synchronized SyncDatabase getInstance(Context context) {
+    if (sInstance == null) {
+      sInstance = new SyncDatabase(context.getApplicationContext());
+    }
+    return sInstance;
+  }
+
+  @Override
+  public void onCreate(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE " + TABLE_DAY_TREND + " ("
+     + COLUMN_DAY_TIME + " INTEGER PRIMARY KEY, "
+     + COLUMN_COUNT + " INTEGER NOT NULL, "
+     + COLUMN_CALORIE + " REAL NOT NULL, "
+     + COLUMN_CONTENT_HASH + " INTEGER NOT NULL DEFAULT 0, "
+     + COLUMN_BINS + " BLOB NOT NULL, "
+     + COLUMN_FETCHED_AT + " INTEGER NOT NULL)");
+    createSyncLedger(db);
+    createUploadOutbox(db);
+  }
+
+  @Override
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    if (oldVersion < 2) {
+      createSyncLedger(db);
+    } else if (oldVersion < 6) {
+      db.execSQL("ALTER TABLE " + TABLE_SYNC_LEDGER + " ADD COLUMN " + COLUMN_READ_AT + " INTEGER NOT NULL DEFAULT 0");
+    }
+    if (oldVersion < 3) {
+      db.execSQL("ALTER TABLE " + TABLE_DAY_TREND + " ADD COLUMN " + COLUMN_CONTENT_HASH + " INTEGER NOT NULL DEFAULT 0");
+    }
+    if (oldVersion < 4) {
+      createUploadOutbox(db);
+    } else if (oldVersion < 6) {
+      if (oldVersion < 5) {
+        // Batches queued before the span was kept have none, their retry takes the span of their bins
+        db.execSQL("ALTER TABLE " + TABLE_UPLOAD_OUTBOX + " ADD COLUMN " + COLUMN_START_TIME + " INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("ALTER TABLE " + TABLE_UPLOAD_OUTBOX + " ADD COLUMN " + COLUMN_END_TIME + " INTEGER NOT NULL DEFAULT 0");
+      }
+      // Batches queued before the time was kept count as older than any day read since
+      db.execSQL("ALTER TABLE " + TABLE_UPLOAD_OUTBOX + " ADD COLUMN " + COLUMN_QUEUED_AT + " INTEGER NOT NULL DEFAULT 0");
+    }
+  }
+
+  private static void createSyncLedger(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE " + TABLE_SYNC_LEDGER + " ("
+     + COLUMN_DAY_TIME + " INTEGER PRIMARY KEY, "
+     + COLUMN_STATUS + " INTEGER NOT NULL, "
+     + COLUMN_CONTENT_HASH + " INTEGER NOT NULL, "
+     + COLUMN_READ_AT + " INTEGER NOT NULL DEFAULT 0, "
+     + COLUMN_UPDATED_AT + " INTEGER NOT NULL)");
+  }
+
+  private static void createUploadOutbox(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE " + TABLE_UPLOAD_OUTBOX + " ("
+     + COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+     + COLUMN_START_DAY_TIME + " INTEGER NOT NULL, "
+     + COLUMN_END_DAY_TIME + " INTEGER NOT NULL, "
+     + COLUMN_START_TIME + " INTEGER NOT NULL DEFAULT 0, "
+     + COLUMN_END_TIME + " INTEGER NOT NULL DEFAULT 0, "
+     + COLUMN_BINS + " BLOB NOT NULL, "
+     + COLUMN_ATTEMPTS + " INTEGER NOT NULL, "
+     + COLUMN_NEXT_ATTEMPT_AT + " INTEGER NOT NULL, "
+     + COLUMN_QUEUED_AT + " INTEGER NOT NULL DEFAULT 0)");
+  }
+}
@@ -0,0 +1,28 @@
+package com.shealth2fit;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Runs sync jobs on pooled worker threads, a thread goes back to the pool as soon as its job completes.
+ * Jobs share the application Samsung Health connection, whose callbacks stay off the worker threads.
+ */
+class SyncEngine {
+  private static SyncEngine sInstance;
+
+  private final ExecutorService mWorkExecutor = Executors.newCachedThreadPool();
+
+  static synchronized SyncEngine getInstance() {
+    if (sInstance == null) {
+      sInstance = new SyncEngine();
+    }
+    return sInstance;
+  }
+
+  // Completes with the outcome of the job
+  ListenableFuture<SyncData.Outcome> submit(SyncData syncJob) {
+    return syncJob.start(BaseApplication.getHealthConnectionManager(), mWorkExecutor);
+  }
+}
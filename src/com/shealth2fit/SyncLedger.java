@@ -0,0 +1,211 @@
+package com.shealth2fit;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.shealth2fit.util.DateUtil;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.shealth2fit.StepCountReader.ONE_DAY;
+import static com.shealth2fit.SyncDatabase.COLUMN_CONTENT_HASH;
+import static com.shealth2fit.SyncDatabase.COLUMN_DAY_TIME;
+import static com.shealth2fit.SyncDatabase.COLUMN_READ_AT;
+import static com.shealth2fit.SyncDatabase.COLUMN_STATUS;
+import static com.shealth2fit.SyncDatabase.COLUMN_UPDATED_AT;
+import static com.shealth2fit.SyncDatabase.TABLE_SYNC_LEDGER;
+
+/*
+ * Sync status of each day, keyed by day_time. Days without a row have never been synced.
+ * Days marked in progress by a sync that never finished stay pending, so the next sync resumes them.
+ * Queued days have a batch waiting in the upload outbox and are left to OutboxWorker.
+ * Uploaded and queued days keep the time their content was read, outbox batches queued before it are out of date for them.
+ */
+class SyncLedger implements StepCountReader.UploadedDayHashes {
+  static final int STATUS_NEVER_SYNCED = 0;
+  static final int STATUS_SYNCED = 1;
+  static final int STATUS_FAILED = 2;
+  static final int STATUS_IN_PROGRESS = 3;
+  static final int STATUS_QUEUED = 4;
+
+  private static SyncLedger sInstance;
+
+  private final SyncDatabase mDatabase;
+
+  private SyncLedger(SyncDatabase database) {
+    mDatabase = database;
+  }
+
+  static synchronized SyncLedger getInstance(Context context) {
+    if (sInstance == null) {
+      sInstance = new SyncLedger(SyncDatabase.getInstance(context));
+    }
+    return sInstance;
+  }
+
+  /*
+   * Days of [startTime, endTime) that still need a sync, as a minimal list of [start, end) ranges.
+   * Yesterday and today are always included since Samsung Health keeps updating them.
+   */
+  List<long[]> getPendingRanges(long startTime, long endTime) {
+    Set<Long> syncedDays = new HashSet<>();
+    long alwaysSyncStartTime = DateUtil.getTodayStartUtcTime() - ONE_DAY;
+
+    String selection = COLUMN_DAY_TIME + " >= ? AND " + COLUMN_DAY_TIME + " < ? AND " + COLUMN_STATUS + " IN (?, ?)";
+    String[] selectionArgs = new String[]{
+     String.valueOf(startTime), String.valueOf(endTime), String.valueOf(STATUS_SYNCED), String.valueOf(STATUS_QUEUED)
+    };
+    try (Cursor cursor = mDatabase.getReadableDatabase().query(TABLE_SYNC_LEDGER, new String[]{COLUMN_DAY_TIME},
+     selection, selectionArgs, null, null, null)) {
+      while (cursor.moveToNext()) {
+        syncedDays.add(cursor.getLong(0));
+      }
+    }
+
+    List<long[]> pendingRanges = new ArrayList<>();
+    long[] currentRange = null;
+    for (long dayTime = startTime; dayTime < endTime; dayTime += ONE_DAY) {
+      if (dayTime < alwaysSyncStartTime && syncedDays.contains(dayTime)) {
+        currentRange = null;
+      } else if (currentRange == null) {
+        currentRange = new long[]{dayTime, Math.min(dayTime + ONE_DAY, endTime)};
+        pendingRanges.add(currentRange);
+      } else {
+        currentRange[1] = Math.min(dayTime + ONE_DAY, endTime);
+      }
+    }
+    return pendingRanges;
+  }
+
+  // The hash column holds the hash of the last upload of the day that succeeded or went to the outbox, 0 when there is none
+  @Override
+  public Map<Long, Long> getUploadedHashes(long startTime, long endTime) {
+    Map<Long, Long> uploadedHashes = new HashMap<>();
+    String selection = COLUMN_DAY_TIME + " >= ? AND " + COLUMN_DAY_TIME + " < ? AND " + COLUMN_CONTENT_HASH + " != 0";
+    String[] selectionArgs = new String[]{String.valueOf(startTime), String.valueOf(endTime)};
+    try (Cursor cursor = mDatabase.getReadableDatabase().query(TABLE_SYNC_LEDGER,
+     new String[]{COLUMN_DAY_TIME, COLUMN_CONTENT_HASH}, selection, selectionArgs, null, null, null)) {
+      while (cursor.moveToNext()) {
+        uploadedHashes.put(cursor.getLong(0), cursor.getLong(1));
+      }
+    }
+    return uploadedHashes;
+  }
+
+  void markInProgress(long startTime, long endTime) {
+    SQLiteDatabase db = mDatabase.getWritableDatabase();
+    db.beginTransaction();
+    try {
+      for (long dayTime = startTime; dayTime < endTime; dayTime += ONE_DAY) {
+        // Keep the hash of the last successful sync while the day is being synced again
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_STATUS, STATUS_IN_PROGRESS);
+        values.put(COLUMN_UPDATED_AT, System.currentTimeMillis());
+        if (db.update(TABLE_SYNC_LEDGER, values, COLUMN_DAY_TIME + " = ?", new String[]{String.valueOf(dayTime)}) == 0) {
+          values.put(COLUMN_DAY_TIME, dayTime);
+          values.put(COLUMN_CONTENT_HASH, 0L);
+          db.insert(TABLE_SYNC_LEDGER, null, values);
+        }
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  // The content read at readTime is in Google Fit
+  void markSynced(long dayTime, long contentHash, long readTime) {
+    put(dayTime, STATUS_SYNCED, contentHash, readTime);
+  }
+
+  // The content read at readTime waits in the upload outbox
+  void markQueued(long dayTime, long contentHash, long readTime) {
+    put(dayTime, STATUS_QUEUED, contentHash, readTime);
+  }
+
+  // The day still has the content of its last upload, which keeps its read time
+  void markUnchanged(long dayTime, long contentHash) {
+    put(dayTime, STATUS_SYNCED, contentHash, -1);
+  }
+
+  void markQueuedSynced(long dayTime) {
+    ContentValues values = new ContentValues();
+    values.put(COLUMN_STATUS, STATUS_SYNCED);
+    values.put(COLUMN_UPDATED_AT, System.currentTimeMillis());
+    mDatabase.getWritableDatabase().update(TABLE_SYNC_LEDGER, values,
+     COLUMN_DAY_TIME + " = ? AND " + COLUMN_STATUS + " = ?",
+     new String[]{String.valueOf(dayTime), String.valueOf(STATUS_QUEUED)});
+  }
+
+  // Days of [startTime, endTime) whose uploaded or queued content was read after time
+  Set<Long> getDaysReadAfter(long startTime, long endTime, long time) {
+    Set<Long> days = new HashSet<>();
+    String selection = COLUMN_DAY_TIME + " >= ? AND " + COLUMN_DAY_TIME + " < ? AND " + COLUMN_READ_AT + " > ?";
+    String[] selectionArgs = new String[]{String.valueOf(startTime), String.valueOf(endTime), String.valueOf(time)};
+    try (Cursor cursor = mDatabase.getReadableDatabase().query(TABLE_SYNC_LEDGER, new String[]{COLUMN_DAY_TIME},
+     selection, selectionArgs, null, null, null)) {
+      while (cursor.moveToNext()) {
+        days.add(cursor.getLong(0));
+      }
+    }
+    return days;
+  }
+
+  // Forgets the last upload of these days, so the next sync reads and uploads them again
+  void markStale(long startTime, long endTime) {
+    ContentValues values = new ContentValues();
+    values.put(COLUMN_STATUS, STATUS_FAILED);
+    values.put(COLUMN_CONTENT_HASH, 0L);
+    values.put(COLUMN_UPDATED_AT, System.currentTimeMillis());
+    mDatabase.getWritableDatabase().update(TABLE_SYNC_LEDGER, values,
+     COLUMN_DAY_TIME + " >= ? AND " + COLUMN_DAY_TIME + " < ?",
+     new String[]{String.valueOf(startTime), String.valueOf(endTime)});
+  }
+
+  void markFailed(long startTime, long endTime) {
+    ContentValues values = new ContentValues();
+    values.put(COLUMN_STATUS, STATUS_FAILED);
+    values.put(COLUMN_UPDATED_AT, System.currentTimeMillis());
+    mDatabase.getWritableDatabase().update(TABLE_SYNC_LEDGER, values,
+     COLUMN_DAY_TIME + " >= ? AND " + COLUMN_DAY_TIME + " < ?",
+     new String[]{String.valueOf(startTime), String.valueOf(endTime)});
+  }
+
+  /*
+   * Days of the range still in progress had no data to upload once every upload of the sync has completed.
+   * Being read empty now, older outbox batches of them are out of date too.
+   */
+  void markInProgressSynced(long startTime, long endTime) {
+    ContentValues values = new ContentValues();
+    values.put(COLUMN_STATUS, STATUS_SYNCED);
+    values.put(COLUMN_CONTENT_HASH, 0L);
+    values.put(COLUMN_READ_AT, System.currentTimeMillis());
+    values.put(COLUMN_UPDATED_AT, System.currentTimeMillis());
+    mDatabase.getWritableDatabase().update(TABLE_SYNC_LEDGER, values,
+     COLUMN_DAY_TIME + " >= ? AND " + COLUMN_DAY_TIME + " < ? AND " + COLUMN_STATUS + " = ?",
+     new String[]{String.valueOf(startTime), String.valueOf(endTime), String.valueOf(STATUS_IN_PROGRESS)});
+  }
+
+  // A negative readTime keeps the read time of the row
+  private void put(long dayTime, int status, long contentHash, long readTime) {
+    ContentValues values = new ContentValues();
+    values.put(COLUMN_STATUS, status);
+    values.put(COLUMN_CONTENT_HASH, contentHash);
+    values.put(COLUMN_UPDATED_AT, System.currentTimeMillis());
+    if (readTime >= 0) {
+      values.put(COLUMN_READ_AT, readTime);
+    }
+    SQLiteDatabase db = mDatabase.getWritableDatabase();
+    if (db.update(TABLE_SYNC_LEDGER, values, COLUMN_DAY_TIME + " = ?", new String[]{String.valueOf(dayTime)}) == 0) {
+      values.put(COLUMN_DAY_TIME, dayTime);
+      db.insert(TABLE_SYNC_LEDGER, null, values);
+    }
+  }
+}
@@ -0,0 +1,69 @@
+package com.shealth2fit;
+
+import android.content.Context;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/* Snapshot of the progress of a sync job */
+class SyncProgress {
+  final long startTime;
+  final long endTime;
+  final int daysRead;
+  final int totalDays;
+  final int binsUploaded;
+  // Time since the job started reading
+  final long elapsedMillis;
+
+  SyncProgress(long startTime, long endTime, int daysRead, int totalDays, int binsUploaded, long elapsedMillis) {
+    this.startTime = startTime;
+    this.endTime = endTime;
+    this.daysRead = daysRead;
+    this.totalDays = totalDays;
+    this.binsUploaded = binsUploaded;
+    this.elapsedMillis = elapsedMillis;
+  }
+
+  // Bins uploaded per second since the start of the job
+  float getBinsPerSecond() {
+    return elapsedMillis > 0 ? binsUploaded * 1000f / elapsedMillis : 0;
+  }
+
+  // Estimated time left at the read rate so far, -1 until the first day is read
+  long getRemainingMillis() {
+    if (daysRead == 0) {
+      return -1;
+    }
+    return elapsedMillis * Math.max(0, totalDays - daysRead) / daysRead;
+  }
+
+  // One line for notifications and the main screen: days, points, throughput and time left
+  String getSummary(Context context) {
+    String summary = context.getString(R.string.sync_progress_summary, daysRead, totalDays, binsUploaded, getBinsPerSecond());
+    long remainingMillis = getRemainingMillis();
+    if (remainingMillis < 0) {
+      return summary;
+    }
+    return summary + ", " + context.getString(R.string.sync_progress_remaining,
+     Math.max(1, TimeUnit.MILLISECONDS.toMinutes(remainingMillis)));
+  }
+
+  // Progress of jobs running side by side, they end when the slowest of them does
+  static SyncProgress combine(List<SyncProgress> progresses) {
+    long startTime = Long.MAX_VALUE;
+    long endTime = Long.MIN_VALUE;
+    int daysRead = 0;
+    int totalDays = 0;
+    int binsUploaded = 0;
+    long elapsedMillis = 0;
+    for (SyncProgress progress : progresses) {
+      startTime = Math.min(startTime, progress.startTime);
+      endTime = Math.max(endTime, progress.endTime);
+      daysRead += progress.daysRead;
+      totalDays += progress.totalDays;
+      binsUploaded += progress.binsUploaded;
+      elapsedMillis = Math.max(elapsedMillis, progress.elapsedMillis);
+    }
+    return new SyncProgress(startTime, endTime, daysRead, totalDays, binsUploaded, elapsedMillis);
+  }
+}
@@ -0,0 +1,69 @@
+package com.shealth2fit;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Latest progress of every running sync job, whichever service or worker runs it.
+ * Jobs report from their sync threads, observers are called on the main thread with all running jobs.
+ */
+class SyncProgressMonitor {
+
+  interface Observer {
+    // Empty once no job is running
+    void onSyncProgress(List<SyncProgress> runningJobs);
+  }
+
+  private static SyncProgressMonitor sInstance;
+
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+  // Only touched on the main thread
+  private final Map<SyncData, SyncProgress> mRunningJobs = new LinkedHashMap<>();
+  private final List<Observer> mObservers = new ArrayList<>();
+
+  static synchronized SyncProgressMonitor getInstance() {
+    if (sInstance == null) {
+      sInstance = new SyncProgressMonitor();
+    }
+    return sInstance;
+  }
+
+  // Must be called on the main thread, the observer gets the current progress right away
+  void addObserver(Observer observer) {
+    if (!mObservers.contains(observer)) {
+      mObservers.add(observer);
+    }
+    observer.onSyncProgress(new ArrayList<>(mRunningJobs.values()));
+  }
+
+  void removeObserver(Observer observer) {
+    mObservers.remove(observer);
+  }
+
+  void update(SyncData job, SyncProgress progress) {
+    mHandler.post(() -> {
+      mRunningJobs.put(job, progress);
+      notifyObservers();
+    });
+  }
+
+  void remove(SyncData job) {
+    mHandler.post(() -> {
+      if (mRunningJobs.remove(job) != null) {
+        notifyObservers();
+      }
+    });
+  }
+
+  private void notifyObservers() {
+    List<SyncProgress> runningJobs = new ArrayList<>(mRunningJobs.values());
+    for (Observer observer : new ArrayList<>(mObservers)) {
+      observer.onSyncProgress(runningJobs);
+    }
+  }
+}
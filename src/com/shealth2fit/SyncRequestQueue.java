@@ -0,0 +1,57 @@
+package com.shealth2fit;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/*
+ * Sync requests of the UI. Requests arriving within DEBOUNCE_DELAY of each other are merged into the minimal set of
+ * ranges, and the days already handed to SyncService and not finished yet are dropped, before any sync is started.
+ */
+class SyncRequestQueue {
+  private static final String TAG = "SyncRequestQueue";
+  private static final long DEBOUNCE_DELAY = 1500;
+
+  private static SyncRequestQueue sInstance;
+
+  private final Context mContext;
+  private final Handler mHandler = new Handler(Looper.getMainLooper());
+  // Ranges waiting for the debounce, and ranges handed to SyncService
+  private final DayRangeSet mRequestedRanges = new DayRangeSet();
+  private final DayRangeSet mActiveRanges = new DayRangeSet();
+  private final Runnable mDispatch = this::dispatch;
+
+  private SyncRequestQueue(Context context) {
+    mContext = context;
+  }
+
+  static synchronized SyncRequestQueue getInstance(Context context) {
+    if (sInstance == null) {
+      sInstance = new SyncRequestQueue(context.getApplicationContext());
+    }
+    return sInstance;
+  }
+
+  void request(long startTime, long endTime) {
+    mHandler.post(() -> {
+      mRequestedRanges.add(startTime, endTime);
+      mHandler.removeCallbacks(mDispatch);
+      mHandler.postDelayed(mDispatch, DEBOUNCE_DELAY);
+    });
+  }
+
+  void onSyncFinished(long startTime, long endTime) {
+    mHandler.post(() -> mActiveRanges.remove(startTime, endTime));
+  }
+
+  private void dispatch() {
+    mRequestedRanges.removeAll(mActiveRanges);
+    for (long[] range : mRequestedRanges.getRanges()) {
+      Log.i(TAG, "dispatch: " + range[0] + "-" + range[1]);
+      mActiveRanges.add(range[0], range[1]);
+      SyncService.start(mContext, range[0], range[1]);
+    }
+    mRequestedRanges.clear();
+  }
+}
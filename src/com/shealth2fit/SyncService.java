@@ -1,49 +1,155 @@
 package com.shealth2fit;
 
-import android.app.IntentService;
+import android.app.Notification;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.os.IBinder;
-import android.os.Looper;
+import android.os.PowerManager;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.core.content.ContextCompat;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.shealth2fit.util.NotificationUtil;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static com.shealth2fit.SyncWorker.DATE_END_TIMESTAMP_KEY;
 import static com.shealth2fit.SyncWorker.DATE_START_TIMESTAMP_KEY;
 import static com.shealth2fit.util.DateUtil.TODAY_START_UTC_TIME;
+import static com.shealth2fit.util.NotificationUtil.SYNC_SERVICE_NOTIFICATION_ID;
 
-public class SyncService extends IntentService {
+/*
+ * Foreground service running the syncs requested by the UI. Every intent starts its own job on the SyncEngine,
+ * so several ranges sync at once. The service holds a partial wake lock and stays in the foreground only while
+ * at least one job is running, its notification shows the combined progress of the running jobs.
+ */
+public class SyncService extends Service {
   private static final String TAG = "SyncService";
+  private static final String WAKE_LOCK_TAG = "shealth2fit:sync";
+  // Safety net in case a job never completes, every progress update of a running job renews it
+  private static final long WAKE_LOCK_TIMEOUT = TimeUnit.HOURS.toMillis(1);
+
   private Context mContext;
+  private PowerManager.WakeLock mWakeLock;
+  // Only touched on the main thread
+  private int mRunningJobCount;
+  private int mLastStartId;
 
-  public SyncService() {
-    super("SyncService");
+  // Starts the service in the foreground, apps in the background may not start plain services
+  static void start(Context context, long startTime, long endTime) {
+    Intent syncServiceIntent = new Intent(context, SyncService.class);
+    syncServiceIntent.putExtra(DATE_START_TIMESTAMP_KEY, startTime);
+    syncServiceIntent.putExtra(DATE_END_TIMESTAMP_KEY, endTime);
+    ContextCompat.startForegroundService(context, syncServiceIntent);
   }
 
   @Override
   public void onCreate() {
     super.onCreate();
     mContext = this.getApplicationContext();
+    NotificationUtil.createNotificationChannel(mContext);
+
+    PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+    mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, WAKE_LOCK_TAG);
+    mWakeLock.setReferenceCounted(false);
   }
 
+  @Nullable
   @Override
   public IBinder onBind(Intent intent) {
-    // TODO: Return the communication channel to the service.
-    throw new UnsupportedOperationException("Not yet implemented");
+    // Progress is published through SyncProgressMonitor, there is nothing to bind to
+    return null;
   }
 
   @Override
-  protected void onHandleIntent(@Nullable Intent intent) {
-    Log.i(TAG, "Service Started");
-    long mStartTime = intent.getLongExtra(DATE_START_TIMESTAMP_KEY, TODAY_START_UTC_TIME);
-    long mEndTime = intent.getLongExtra(DATE_END_TIMESTAMP_KEY, TODAY_START_UTC_TIME);
+  public int onStartCommand(@Nullable Intent intent, int flags, int startId) {
+    mLastStartId = startId;
+    // Android gives a foreground service started this way a few seconds to call startForeground
+    startForeground(SYNC_SERVICE_NOTIFICATION_ID, getProgressNotification(null));
+    if (intent == null) {
+      stopIfIdle();
+      return START_NOT_STICKY;
+    }
+
+    long startTime = intent.getLongExtra(DATE_START_TIMESTAMP_KEY, TODAY_START_UTC_TIME);
+    long endTime = intent.getLongExtra(DATE_END_TIMESTAMP_KEY, TODAY_START_UTC_TIME);
+    Log.i(TAG, "onStartCommand: " + startTime + "-" + endTime);
 
-    Looper.getMainLooper();
+    mRunningJobCount++;
+    mWakeLock.acquire(WAKE_LOCK_TIMEOUT);
+    SyncProgressMonitor.getInstance().addObserver(mProgressObserver);
 
-    SyncData syncData = new SyncData(mContext, mStartTime, mEndTime);
-    syncData.startNoThread();
+    SyncData syncData = new SyncData(mContext, startTime, endTime);
+    syncData.setHasProgressNotification(true);
+    Futures.addCallback(SyncEngine.getInstance().submit(syncData), new FutureCallback<SyncData.Outcome>() {
+      @Override
+      public void onSuccess(SyncData.Outcome outcome) {
+        Log.i(TAG, "Service Sync " + outcome);
+        onJobFinished(startTime, endTime);
+      }
 
-    Looper.loop();
+      @Override
+      public void onFailure(@NonNull Throwable t) {
+        Log.e(TAG, "Service Sync Failed", t);
+        onJobFinished(startTime, endTime);
+      }
+    }, ContextCompat.getMainExecutor(mContext));
+
+    // A killed service gets its unfinished intents again, the sync ledger skips the days already synced
+    return START_REDELIVER_INTENT;
+  }
+
+  @Override
+  public void onDestroy() {
+    SyncProgressMonitor.getInstance().removeObserver(mProgressObserver);
+    if (mWakeLock.isHeld()) {
+      mWakeLock.release();
+    }
+    super.onDestroy();
   }
+
+  private void onJobFinished(long startTime, long endTime) {
+    mRunningJobCount--;
+    SyncRequestQueue.getInstance(mContext).onSyncFinished(startTime, endTime);
+    stopIfIdle();
+  }
+
+  private void stopIfIdle() {
+    if (mRunningJobCount > 0) {
+      return;
+    }
+    SyncProgressMonitor.getInstance().removeObserver(mProgressObserver);
+    if (mWakeLock.isHeld()) {
+      mWakeLock.release();
+    }
+    stopForeground(true);
+    // Ignored when an intent arrived since, its job then keeps the service running
+    stopSelf(mLastStartId);
+  }
+
+  private Notification getProgressNotification(@Nullable List<SyncProgress> runningJobs) {
+    if (runningJobs == null || runningJobs.isEmpty()) {
+      return NotificationUtil.buildProgressNotification(mContext, getString(R.string.sync_progress_title), "", 0, 0);
+    }
+
+    SyncProgress progress = SyncProgress.combine(runningJobs);
+    String title = runningJobs.size() > 1
+     ? getString(R.string.sync_progress_jobs, runningJobs.size())
+     : getString(R.string.sync_progress_title);
+    return NotificationUtil.buildProgressNotification(mContext, title, progress.getSummary(mContext),
+     progress.totalDays, progress.daysRead);
+  }
+
+  private final SyncProgressMonitor.Observer mProgressObserver = runningJobs -> {
+    if (mRunningJobCount > 0) {
+      mWakeLock.acquire(WAKE_LOCK_TIMEOUT);
+      NotificationUtil.notify(mContext, SYNC_SERVICE_NOTIFICATION_ID, getProgressNotification(runningJobs));
+    }
+  };
 }
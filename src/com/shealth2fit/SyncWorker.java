@@ -6,15 +6,15 @@ import androidx.annotation.NonNull;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
+import com.shealth2fit.util.DateUtil;
 import com.shealth2fit.util.NotificationUtil;
 
-import static com.shealth2fit.util.DateUtil.TODAY_START_UTC_TIME;
-
 public class SyncWorker extends Worker {
 
   static final String SYNC_WORKER_TAG = "auto_sync_worker";
   static final String DATE_START_TIMESTAMP_KEY = "sHealth_start_timestamp";
   static final String DATE_END_TIMESTAMP_KEY = "sHealth_end_timestamp";
+  private static final int AUTO_SYNC_LOOKBACK_DAYS = 30;
 
   private final Context mContext;
   private String TAG = "SyncWorker";
@@ -29,14 +29,16 @@ public class SyncWorker extends Worker {
   public Result doWork() {
     NotificationUtil.createNotificationChannel(mContext);
 
-    long mStartTimeStamp = getInputData().getLong(DATE_START_TIMESTAMP_KEY, TODAY_START_UTC_TIME);
-    long mEndTimeStamp = getInputData().getLong(DATE_END_TIMESTAMP_KEY, TODAY_START_UTC_TIME + StepCountReader.ONE_DAY);
+    // Periodic syncs look back over the last days, the sync ledger narrows that to the days still missing
+    long todayStartTime = DateUtil.getTodayStartUtcTime();
+    long mStartTimeStamp = getInputData().getLong(DATE_START_TIMESTAMP_KEY, todayStartTime - AUTO_SYNC_LOOKBACK_DAYS * StepCountReader.ONE_DAY);
+    long mEndTimeStamp = getInputData().getLong(DATE_END_TIMESTAMP_KEY, todayStartTime + StepCountReader.ONE_DAY);
 
     try {
       SyncData syncData = new SyncData(mContext, mStartTimeStamp, mEndTimeStamp);
-      syncData.start();
-
-      return Result.success();
+      // Failed days stay pending in the sync ledger, the retry only picks those up again.
+      // Queued batches are retried by OutboxWorker, a sync retry would not read their days again
+      return SyncEngine.getInstance().submit(syncData).get() != SyncData.Outcome.FAILED ? Result.success() : Result.retry();
     } catch (Exception e) {
       return Result.failure();
     }
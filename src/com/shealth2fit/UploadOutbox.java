@@ -0,0 +1,181 @@
+package com.shealth2fit;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.shealth2fit.SyncDatabase.COLUMN_ATTEMPTS;
+import static com.shealth2fit.SyncDatabase.COLUMN_BINS;
+import static com.shealth2fit.SyncDatabase.COLUMN_END_DAY_TIME;
+import static com.shealth2fit.SyncDatabase.COLUMN_END_TIME;
+import static com.shealth2fit.SyncDatabase.COLUMN_ID;
+import static com.shealth2fit.SyncDatabase.COLUMN_NEXT_ATTEMPT_AT;
+import static com.shealth2fit.SyncDatabase.COLUMN_QUEUED_AT;
+import static com.shealth2fit.SyncDatabase.COLUMN_START_DAY_TIME;
+import static com.shealth2fit.SyncDatabase.COLUMN_START_TIME;
+import static com.shealth2fit.SyncDatabase.TABLE_UPLOAD_OUTBOX;
+
+/*
+ * Batches whose Google Fit insert failed, kept until OutboxWorker manages to insert them.
+ * Each batch remembers the days it covers, [startDayTime, endDayTime), so the sync ledger can be updated once it is in,
+ * and the span of Google Fit it owns, [startTime, endTime), so its retry can replace that span instead of adding to it.
+ * The time it was queued tells which of its days a later sync has uploaded or queued again since.
+ */
+class UploadOutbox {
+  private static final long BASE_RETRY_DELAY = TimeUnit.SECONDS.toMillis(30);
+  private static final long MAX_RETRY_DELAY = TimeUnit.HOURS.toMillis(1);
+  private static final String[] ENTRY_COLUMNS = new String[]{
+   COLUMN_ID, COLUMN_START_DAY_TIME, COLUMN_END_DAY_TIME, COLUMN_START_TIME, COLUMN_END_TIME, COLUMN_BINS, COLUMN_ATTEMPTS,
+   COLUMN_QUEUED_AT
+  };
+
+  private static UploadOutbox sInstance;
+
+  private final SyncDatabase mDatabase;
+  private final Random mRandom = new Random();
+
+  private UploadOutbox(SyncDatabase database) {
+    mDatabase = database;
+  }
+
+  static synchronized UploadOutbox getInstance(Context context) {
+    if (sInstance == null) {
+      sInstance = new UploadOutbox(SyncDatabase.getInstance(context));
+    }
+    return sInstance;
+  }
+
+  void add(StepBinSeries batch, long startDayTime, long endDayTime, long startTime, long endTime) {
+    long currentTime = System.currentTimeMillis();
+    insert(batch, startDayTime, endDayTime, startTime, endTime, 0, currentTime + getRetryDelay(0), currentTime);
+  }
+
+  /*
+   * Replaces the entry by consecutive pieces of at most batchSize bins, due right away. Each piece covers the days
+   * of the entry and owns its part of the span, cut at the first bin of the next piece. The pieces keep its queue time.
+   */
+  void split(Entry entry, int batchSize) {
+    List<StepBinSeries> pieces = entry.binSeries.partition(batchSize);
+    boolean hasSpan = entry.endTime > entry.startTime;
+    long currentTime = System.currentTimeMillis();
+
+    SQLiteDatabase db = mDatabase.getWritableDatabase();
+    db.beginTransaction();
+    try {
+      remove(entry.id);
+      for (int i = 0, pieceCount = pieces.size(); i < pieceCount; i++) {
+        StepBinSeries piece = pieces.get(i);
+        long startTime = hasSpan ? (i == 0 ? entry.startTime : piece.getTime(0)) : 0;
+        long endTime = hasSpan ? (i == pieceCount - 1 ? entry.endTime : pieces.get(i + 1).getTime(0)) : 0;
+        insert(piece, entry.startDayTime, entry.endDayTime, startTime, endTime, entry.attempts, currentTime,
+         entry.queuedTime);
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private void insert(StepBinSeries batch, long startDayTime, long endDayTime, long startTime, long endTime,
+                      int attempts, long nextAttemptTime, long queuedTime) {
+    ContentValues values = new ContentValues();
+    values.put(COLUMN_START_DAY_TIME, startDayTime);
+    values.put(COLUMN_END_DAY_TIME, endDayTime);
+    values.put(COLUMN_START_TIME, startTime);
+    values.put(COLUMN_END_TIME, endTime);
+    values.put(COLUMN_BINS, batch.toBytes());
+    values.put(COLUMN_ATTEMPTS, attempts);
+    values.put(COLUMN_NEXT_ATTEMPT_AT, nextAttemptTime);
+    values.put(COLUMN_QUEUED_AT, queuedTime);
+    mDatabase.getWritableDatabase().insertOrThrow(TABLE_UPLOAD_OUTBOX, null, values);
+  }
+
+  // Batches due for a retry at currentTime, oldest first
+  List<Entry> getDue(long currentTime, int limit) {
+    List<Entry> entries = new ArrayList<>();
+    try (Cursor cursor = mDatabase.getReadableDatabase().query(TABLE_UPLOAD_OUTBOX, ENTRY_COLUMNS,
+     COLUMN_NEXT_ATTEMPT_AT + " <= ?", new String[]{String.valueOf(currentTime)},
+     null, null, COLUMN_ID + " ASC", String.valueOf(limit))) {
+      while (cursor.moveToNext()) {
+        entries.add(new Entry(
+         cursor.getLong(0),
+         cursor.getLong(1),
+         cursor.getLong(2),
+         cursor.getLong(3),
+         cursor.getLong(4),
+         StepBinSeries.fromBytes(cursor.getBlob(5)),
+         cursor.getInt(6),
+         cursor.getLong(7)
+        ));
+      }
+    }
+    return entries;
+  }
+
+  void remove(long id) {
+    mDatabase.getWritableDatabase().delete(TABLE_UPLOAD_OUTBOX, COLUMN_ID + " = ?", new String[]{String.valueOf(id)});
+  }
+
+  // Pushes the next attempt of the batch back by an exponential delay with jitter
+  void postpone(long id, int attempts) {
+    ContentValues values = new ContentValues();
+    values.put(COLUMN_ATTEMPTS, attempts);
+    values.put(COLUMN_NEXT_ATTEMPT_AT, System.currentTimeMillis() + getRetryDelay(attempts));
+    mDatabase.getWritableDatabase().update(TABLE_UPLOAD_OUTBOX, values, COLUMN_ID + " = ?", new String[]{String.valueOf(id)});
+  }
+
+  boolean hasDay(long dayTime) {
+    return DatabaseUtils.queryNumEntries(mDatabase.getReadableDatabase(), TABLE_UPLOAD_OUTBOX,
+     COLUMN_START_DAY_TIME + " <= ? AND " + COLUMN_END_DAY_TIME + " > ?",
+     new String[]{String.valueOf(dayTime), String.valueOf(dayTime)}) > 0;
+  }
+
+  // Time of the earliest retry, 0 when the outbox is empty
+  long getNextAttemptTime() {
+    try (Cursor cursor = mDatabase.getReadableDatabase().rawQuery(
+     "SELECT MIN(" + COLUMN_NEXT_ATTEMPT_AT + ") FROM " + TABLE_UPLOAD_OUTBOX, null)) {
+      return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : 0;
+    }
+  }
+
+  /*
+   * Half of the doubled delay is fixed and the other half random, so batches failing together
+   * do not all come back at the same moment.
+   */
+  private long getRetryDelay(int attempts) {
+    long delay = Math.min(MAX_RETRY_DELAY, BASE_RETRY_DELAY << Math.min(attempts, 16));
+    return delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+  }
+
+  static class Entry {
+    final long id;
+    final long startDayTime;
+    final long endDayTime;
+    // 0 for both when the batch was queued without its span
+    final long startTime;
+    final long endTime;
+    final StepBinSeries binSeries;
+    final int attempts;
+    // 0 when the batch was queued before the time was kept
+    final long queuedTime;
+
+    Entry(long id, long startDayTime, long endDayTime, long startTime, long endTime, StepBinSeries binSeries, int attempts,
+          long queuedTime) {
+      this.id = id;
+      this.startDayTime = startDayTime;
+      this.endDayTime = endDayTime;
+      this.startTime = startTime;
+      this.endTime = endTime;
+      this.binSeries = binSeries;
+      this.attempts = attempts;
+      this.queuedTime = queuedTime;
+    }
+  }
+}
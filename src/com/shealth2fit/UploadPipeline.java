@@ -0,0 +1,114 @@
+package com.shealth2fit;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.shealth2fit.util.GoogleFitWriter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Upload stage of a sync. At most maxInFlight batches are being inserted at a time, submit blocks
+ * the caller until a slot frees up, so the reader feeding the pipeline cannot run ahead of the uploads.
+ * Batches Google Fit rejects are moved to the upload outbox instead of being lost.
+ */
+class UploadPipeline {
+  private static final String TAG = "UploadPipeline";
+
+  private final GoogleFitWriter mFitWriter;
+  private final UploadOutbox mOutbox;
+  private final AdaptiveBatcher mBatcher;
+  private final Semaphore mInFlightUploads;
+  private final List<ListenableFuture<Boolean>> mUploads = new ArrayList<>();
+  private final AtomicInteger mUploadedBinCount = new AtomicInteger();
+  private volatile boolean mHasQueuedBatches;
+
+  UploadPipeline(GoogleFitWriter fitWriter, UploadOutbox outbox, AdaptiveBatcher batcher, int maxInFlight) {
+    mFitWriter = fitWriter;
+    mOutbox = outbox;
+    mBatcher = batcher;
+    mInFlightUploads = new Semaphore(maxInFlight);
+  }
+
+  /*
+   * The future is true once the batch is in Google Fit, false once it has been queued in the outbox,
+   * and fails only when the batch could not even be queued.
+   * The batch covers the days [startDayTime, endDayTime) and owns the span [startTime, endTime) of Google Fit.
+   * The batch may be a view, a copy is kept while the insert is pending so the outbox gets the original bins.
+   */
+  ListenableFuture<Boolean> submit(StepBinSeries batch, long startDayTime, long endDayTime, long startTime, long endTime)
+   throws InterruptedException {
+    mInFlightUploads.acquire();
+
+    SettableFuture<Boolean> upload = SettableFuture.create();
+    mUploads.add(upload);
+    StepBinSeries pendingBatch = batch.copy();
+    long submitTime = SystemClock.elapsedRealtime();
+
+    Task<Void> insertTask;
+    try {
+      insertTask = mFitWriter.write(pendingBatch, startTime, endTime);
+    } catch (RuntimeException e) {
+      mInFlightUploads.release();
+      mBatcher.onBatchCompleted(pendingBatch.size(), 0, false);
+      queue(upload, pendingBatch, startDayTime, endDayTime, startTime, endTime, e);
+      return upload;
+    }
+
+    insertTask.addOnCompleteListener(MoreExecutors.directExecutor(), task -> {
+      mInFlightUploads.release();
+      mBatcher.onBatchCompleted(pendingBatch.size(), SystemClock.elapsedRealtime() - submitTime, task.isSuccessful());
+      if (task.isSuccessful()) {
+        mUploadedBinCount.addAndGet(pendingBatch.size());
+        upload.set(true);
+      } else {
+        queue(upload, pendingBatch, startDayTime, endDayTime, startTime, endTime, task.getException());
+      }
+    });
+    return upload;
+  }
+
+  // Bins of the batches Google Fit has accepted so far
+  int getUploadedBinCount() {
+    return mUploadedBinCount.get();
+  }
+
+  // True when at least one batch went to the outbox, the caller then schedules its retries
+  boolean hasQueuedBatches() {
+    return mHasQueuedBatches;
+  }
+
+  private void queue(SettableFuture<Boolean> upload, StepBinSeries batch, long startDayTime, long endDayTime,
+                     long startTime, long endTime, Exception insertException) {
+    Log.e(TAG, "Insert failed, queueing " + batch.size() + " bins", insertException);
+    try {
+      mOutbox.add(batch, startDayTime, endDayTime, startTime, endTime);
+      mHasQueuedBatches = true;
+      upload.set(false);
+    } catch (RuntimeException e) {
+      upload.setException(e);
+    }
+  }
+
+  // Waits for every submitted batch, true when all of them were inserted or queued, hasQueuedBatches tells them apart
+  boolean awaitCompletion() throws InterruptedException {
+    boolean isSuccessful = true;
+    for (ListenableFuture<Boolean> upload : mUploads) {
+      try {
+        upload.get();
+      } catch (ExecutionException e) {
+        Log.e(TAG, "Upload failed", e.getCause());
+        isSuccessful = false;
+      }
+    }
+    return isSuccessful;
+  }
+}
@@ -1,7 +1,5 @@
 package com.shealth2fit.util;
 
-import android.util.Log;
-
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
@@ -9,17 +7,14 @@ import java.util.Date;
 import java.util.TimeZone;
 
 public class DateUtil {
-  private static String TAG = "DateUtil";
   public static long TODAY_START_UTC_TIME;
 
   static {
     TODAY_START_UTC_TIME = getTodayStartUtcTime();
   }
 
-  private static long getTodayStartUtcTime() {
+  public static long getTodayStartUtcTime() {
     Calendar today = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-    Log.d(TAG, "Today : " + today.getTimeInMillis());
-
     today.set(Calendar.HOUR_OF_DAY, 0);
     today.set(Calendar.MINUTE, 0);
     today.set(Calendar.SECOND, 0);
@@ -53,6 +48,51 @@ public class DateUtil {
     return dateFormat.format(date);
   }
 
+  // Local midnight of the day whose UTC start time is given, as stored in Samsung Health day_time
+  public static long getLocalDayStartFromUTC(long utcDayTime) {
+    return localToUTC(utcDayTime, TimeZone.getDefault());
+  }
+
+  /*
+   * Instant of a wall clock time of the given time zone, given as millis since the local epoch.
+   * Times skipped by a forward transition move forward with it, times repeated by a backward
+   * transition resolve to their later occurrence, as SimpleDateFormat parses them.
+   */
+  public static long localToUTC(long localMillis, TimeZone timeZone) {
+    long estimate = localMillis - timeZone.getOffset(localMillis - timeZone.getRawOffset());
+    return localMillis - timeZone.getOffset(estimate);
+  }
+
+  // Parses a "yyyy-MM-dd HH:mm" local date time of the given time zone, without allocating
+  public static long parseLocalDateTime(String dateTime, TimeZone timeZone) {
+    int year = parseDigits(dateTime, 0, 4);
+    int month = parseDigits(dateTime, 5, 2);
+    int day = parseDigits(dateTime, 8, 2);
+    int hour = parseDigits(dateTime, 11, 2);
+    int minute = parseDigits(dateTime, 14, 2);
+
+    long localMillis = ((daysFromCivil(year, month, day) * 24 + hour) * 60 + minute) * 60 * 1000;
+    return localToUTC(localMillis, timeZone);
+  }
+
+  private static int parseDigits(String text, int start, int length) {
+    int value = 0;
+    for (int i = start; i < start + length; i++) {
+      value = value * 10 + (text.charAt(i) - '0');
+    }
+    return value;
+  }
+
+  // Days since 1970-01-01 of a proleptic Gregorian date
+  private static long daysFromCivil(int year, int month, int day) {
+    year -= month <= 2 ? 1 : 0;
+    long era = (year >= 0 ? year : year - 399) / 400;
+    long yearOfEra = year - era * 400;
+    long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+
   public static Calendar toUTC(Calendar localDate) {
     TimeZone localDateTimeZone = localDate.getTimeZone();
 
@@ -3,26 +3,20 @@ package com.shealth2fit.util;
 import android.content.Context;
 import android.util.Log;
 
-import androidx.annotation.NonNull;
-
 import com.google.android.gms.auth.api.signin.GoogleSignIn;
 import com.google.android.gms.fitness.Fitness;
-import com.google.android.gms.fitness.FitnessOptions;
 import com.google.android.gms.fitness.data.Bucket;
 import com.google.android.gms.fitness.data.DataPoint;
 import com.google.android.gms.fitness.data.DataSet;
-import com.google.android.gms.fitness.data.DataSource;
 import com.google.android.gms.fitness.data.DataType;
 import com.google.android.gms.fitness.data.Field;
 import com.google.android.gms.fitness.request.DataReadRequest;
 import com.google.android.gms.fitness.result.DataReadResponse;
-import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.Task;
-import com.shealth2fit.StepCountReader;
+import com.shealth2fit.StepBinSeries;
 
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Date;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
@@ -66,136 +60,67 @@ public class GoogleFitUtil {
 //     });
   }
 
-  public static void insertMultiDataPoints(Context mContext, List<StepCountReader.StepBinningData> stepsData) {
-    FitnessOptions fitnessOptions = FitnessOptions.builder()
-     .addDataType(DataType.TYPE_STEP_COUNT_DELTA, FitnessOptions.ACCESS_WRITE)
-     .addDataType(DataType.AGGREGATE_STEP_COUNT_DELTA, FitnessOptions.ACCESS_WRITE)
-     .addDataType(DataType.TYPE_CALORIES_EXPENDED, FitnessOptions.ACCESS_WRITE)
-     .addDataType(DataType.TYPE_DISTANCE_DELTA, FitnessOptions.ACCESS_WRITE)
-     .build();
-
-    Log.i(TAG, "MultiData : Insert Initialize");
-    Log.i(TAG, "MultiData : Create Data Store");
-
-    // Create a data source
-    DataSource dataSource =
-     new DataSource.Builder()
-      .setAppPackageName(mContext)
-      .setDataType(DataType.TYPE_STEP_COUNT_DELTA)
-      .setStreamName(TAG + " - step count")
-      .setType(DataSource.TYPE_RAW)
-      .build();
-
-    DataSource calorieDataSource =
-     new DataSource.Builder()
-      .setAppPackageName(mContext)
-      .setDataType(DataType.TYPE_CALORIES_EXPENDED)
-      .setStreamName(TAG + " - calorie")
-      .setType(DataSource.TYPE_RAW)
-      .build();
-
-    DataSet dataSet = DataSet.create(dataSource);
-    DataSet calorieDataSet = DataSet.create(calorieDataSource);
-
-    // Create and add Data Point for each bin item to dataSet
-    for (StepCountReader.StepBinningData data : stepsData) {
-      // Start and End time are 10 minutes apart.
-
-      Calendar cal = Calendar.getInstance();
-      long startTime = data.time;
-      Date startDate = new Date(startTime);
-      cal.setTime(startDate);
-      long startSec = cal.getTimeInMillis();
-      cal.add(Calendar.MINUTE, +10);
-      long endTime = cal.getTimeInMillis();
-
-      int stepCountDelta = data.count;
-
-      if (stepCountDelta > 0) {
-        DataPoint dataPoint = DataPoint.builder(dataSource)
-         .setTimeInterval(startSec, endTime, TimeUnit.MILLISECONDS)
-         .setField(Field.FIELD_STEPS, stepCountDelta)
-         .build();
-
-        try {
-          dataSet.add(dataPoint);
-          calorieDataSet.add(
-           DataPoint.builder(calorieDataSource)
-            .setTimeInterval(startSec, endTime, TimeUnit.MILLISECONDS)
-            .setField(Field.FIELD_CALORIES, data.getCalorie())
-            .build()
-          );
-        } catch (Exception e) {
-          Log.i(TAG, "Failed to add Data: " + e);
-        }
-      }
+  /*
+   * Decodes the data points of a read response, bucketed or not, into bins.
+   * The steps, calories and distance fields are looked up once per data type, not for every point.
+   */
+  public static StepBinSeries getBinDataFromResponse(DataReadResponse daysStepData) {
+    if (daysStepData == null) {
+      return new StepBinSeries();
     }
 
-    // Then, invoke the History API to insert the data.
-    Log.i(TAG, "MultiData : Inserting the dataset in the History API");
-    Log.i(TAG, "MultiData : Data Points inserting : " + dataSet.getDataPoints().size());
-
-    if (mContext != null) {
-      Fitness.getHistoryClient(mContext, GoogleSignIn.getAccountForExtension(mContext, fitnessOptions))
-       .insertData(dataSet)
-       .addOnCompleteListener(
-        new OnCompleteListener<Void>() {
-          @Override
-          public void onComplete(@NonNull Task<Void> task) {
-            if (task.isSuccessful()) {
-              // At this point, the data has been inserted and can be read.
-              Log.i(TAG, "MultiData : Insert was successful!");
-            } else {
-              Log.e(TAG, "MultiData : There was a problem inserting the dataset.", task.getException());
-            }
-          }
-        });
-
-      Fitness.getHistoryClient(mContext, GoogleSignIn.getAccountForExtension(mContext, fitnessOptions))
-       .insertData(calorieDataSet)
-       .addOnCompleteListener(
-        new OnCompleteListener<Void>() {
-          @Override
-          public void onComplete(@NonNull Task<Void> task) {
-            if (task.isSuccessful()) {
-              // At this point, the data has been inserted and can be read.
-              Log.i(TAG, "Calories MultiData : Insert was successful!");
-            } else {
-              Log.e(TAG, "Calories MultiData : There was a problem inserting the dataset.", task.getException());
-            }
-          }
-        });
+    List<DataSet> dataSets = new ArrayList<>(daysStepData.getDataSets());
+    for (Bucket dataBucket : daysStepData.getBuckets()) {
+      dataSets.addAll(dataBucket.getDataSets());
     }
-  }
 
-  public static List<StepCountReader.StepBinningData> getBinDataFromResponse(DataReadResponse daysStepData) {
-    List<StepCountReader.StepBinningData> binningDataList = new ArrayList<>();
+    int pointCount = 0;
+    for (DataSet dataSet : dataSets) {
+      pointCount += dataSet.getDataPoints().size();
+    }
 
-    if (daysStepData != null) {
-      List<Bucket> datBuckets = daysStepData.getBuckets();
+    StepBinSeries binningDataList = new StepBinSeries(Math.max(1, pointCount));
+    BinFields binFields = null;
+    for (DataSet dataSet : dataSets) {
+      if (binFields == null || !binFields.dataType.equals(dataSet.getDataType())) {
+        binFields = new BinFields(dataSet.getDataType());
+      }
+      addBinData(dataSet, binFields, binningDataList);
+    }
 
-      for (Bucket dataBucket : datBuckets) {
-        List<DataSet> dataSets = dataBucket.getDataSets();
+    Log.i(TAG, "Read Data : bin " + binningDataList.size() + " from " + dataSets.size() + " data sets");
+    return binningDataList;
+  }
 
-        for (DataSet dataSet : dataSets) {
-          for (DataPoint dp : dataSet.getDataPoints()) {
-            long binStartTime = dp.getStartTime(TimeUnit.MILLISECONDS);
-            int binStepCount = 0;
+  // Appends the data points of the data set to the bins, in the order of the data set
+  public static void addBinData(DataSet dataSet, StepBinSeries binningDataList) {
+    addBinData(dataSet, new BinFields(dataSet.getDataType()), binningDataList);
+  }
 
-            for (Field field : dp.getDataType().getFields()) {
-              if (field.getName().equals(Field.FIELD_STEPS)) {
-                binStepCount = dp.getValue(field).asInt();
-                Log.i(TAG, field.toString());
-              }
-            }
+  private static void addBinData(DataSet dataSet, BinFields binFields, StepBinSeries binningDataList) {
+    for (DataPoint dp : dataSet.getDataPoints()) {
+      binningDataList.add(
+       dp.getStartTime(TimeUnit.MILLISECONDS),
+       binFields.steps != null ? dp.getValue(binFields.steps).asInt() : 0,
+       binFields.calories != null ? dp.getValue(binFields.calories).asFloat() : 0,
+       binFields.distance != null ? dp.getValue(binFields.distance).asFloat() : 0
+      );
+    }
+  }
 
-            StepCountReader.StepBinningData newBinItem = new StepCountReader.StepBinningData(binStartTime, binStepCount);
-            binningDataList.add(newBinItem);
-          }
-        }
-      }
+  // Bin fields present in a data type, null for the missing ones
+  private static class BinFields {
+    final DataType dataType;
+    final Field steps;
+    final Field calories;
+    final Field distance;
+
+    BinFields(DataType dataType) {
+      this.dataType = dataType;
+      List<Field> fields = dataType.getFields();
+      steps = fields.contains(Field.FIELD_STEPS) ? Field.FIELD_STEPS : null;
+      calories = fields.contains(Field.FIELD_CALORIES) ? Field.FIELD_CALORIES : null;
+      distance = fields.contains(Field.FIELD_DISTANCE) ? Field.FIELD_DISTANCE : null;
     }
-    Log.i(TAG, "Read Data : bin " + binningDataList.size());
-    return binningDataList;
   }
 }
@@ -0,0 +1,358 @@
+package com.shealth2fit.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.android.gms.auth.api.signin.GoogleSignIn;
+import com.google.android.gms.fitness.Fitness;
+import com.google.android.gms.fitness.FitnessOptions;
+import com.google.android.gms.fitness.HistoryClient;
+import com.google.android.gms.fitness.data.DataPoint;
+import com.google.android.gms.fitness.data.DataSet;
+import com.google.android.gms.fitness.data.DataSource;
+import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.fitness.data.Field;
+import com.google.android.gms.fitness.request.DataDeleteRequest;
+import com.google.android.gms.fitness.request.DataReadRequest;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.Tasks;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.shealth2fit.StepBinSeries;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.shealth2fit.StepCountReader.BIN_MILLIS;
+
+/*
+ * Writes step bins to the Google Fit History API.
+ * Created once per sync, so the data sources and the history client are shared by every batch.
+ */
+public class GoogleFitWriter {
+  private static final String TAG = "GoogleFitWriter";
+  // Stream names of the data sources created by earlier versions, kept so Fit sees the same sources
+  private static final String STREAM_NAME_PREFIX = "GoogleFitUtil";
+
+  public enum WriteMode {
+    // Inserts every bin
+    INSERT,
+    // Reads the bins this app already wrote for the batch span and writes only the new or changed ones,
+    // the old points of a changed bin are deleted first. Spans holding points no bin accounts for are replaced
+    RECONCILE,
+    // Deletes what this app wrote in the span of the bins and inserts them again, unless Fit already holds exactly them
+    REPLACE_DAY
+  }
+
+  private final WriteMode mWriteMode;
+  private final DataSource mStepDataSource;
+  private final DataSource mCalorieDataSource;
+  private final DataSource mDistanceDataSource;
+  private final HistoryClient mHistoryClient;
+
+  public GoogleFitWriter(Context mContext) {
+    this(mContext, WriteMode.INSERT);
+  }
+
+  public GoogleFitWriter(Context mContext, WriteMode writeMode) {
+    mWriteMode = writeMode;
+    FitnessOptions fitnessOptions = FitnessOptions.builder()
+     .addDataType(DataType.TYPE_STEP_COUNT_DELTA, FitnessOptions.ACCESS_READ)
+     .addDataType(DataType.TYPE_STEP_COUNT_DELTA, FitnessOptions.ACCESS_WRITE)
+     .addDataType(DataType.AGGREGATE_STEP_COUNT_DELTA, FitnessOptions.ACCESS_WRITE)
+     .addDataType(DataType.TYPE_CALORIES_EXPENDED, FitnessOptions.ACCESS_WRITE)
+     .addDataType(DataType.TYPE_DISTANCE_DELTA, FitnessOptions.ACCESS_WRITE)
+     .build();
+
+    mStepDataSource = createDataSource(mContext, DataType.TYPE_STEP_COUNT_DELTA, " - step count");
+    mCalorieDataSource = createDataSource(mContext, DataType.TYPE_CALORIES_EXPENDED, " - calorie");
+    mDistanceDataSource = createDataSource(mContext, DataType.TYPE_DISTANCE_DELTA, " - distance");
+
+    mHistoryClient = Fitness.getHistoryClient(mContext, GoogleSignIn.getAccountForExtension(mContext, fitnessOptions));
+  }
+
+  private static DataSource createDataSource(Context mContext, DataType dataType, String streamName) {
+    return new DataSource.Builder()
+     .setAppPackageName(mContext)
+     .setDataType(dataType)
+     .setStreamName(STREAM_NAME_PREFIX + streamName)
+     .setType(DataSource.TYPE_RAW)
+     .build();
+  }
+
+  /*
+   * Writes the bins with the write mode of this writer. [startTime, endTime) is the span of Google Fit owned by the bins,
+   * whole days when the bins hold whole days. In RECONCILE and REPLACE_DAY mode, anything this app wrote there
+   * that no bin accounts for is removed.
+   * The bins are read again once the Google Fit read completes, so they must not change until the task is done.
+   */
+  public Task<Void> write(StepBinSeries stepsData, long startTime, long endTime) {
+    switch (mWriteMode) {
+      case RECONCILE:
+        return reconcile(stepsData, startTime, endTime);
+      case REPLACE_DAY:
+        return replace(stepsData, startTime, endTime);
+      default:
+        return insert(stepsData);
+    }
+  }
+
+  /*
+   * Inserts the step, calorie and distance data points of the bins.
+   * The History API takes a single data type per insert, so this is one call per non empty data set.
+   */
+  public Task<Void> insert(StepBinSeries stepsData) {
+    DataSet stepDataSet = DataSet.create(mStepDataSource);
+    DataSet calorieDataSet = DataSet.create(mCalorieDataSource);
+    DataSet distanceDataSet = DataSet.create(mDistanceDataSource);
+
+    // One pass over the bins fills the three data sets
+    forEachBinPoint(stepsData, (startTime, endTime, steps, calories, distance) -> {
+      stepDataSet.add(
+       DataPoint.builder(mStepDataSource)
+        .setTimeInterval(startTime, endTime, TimeUnit.MILLISECONDS)
+        .setField(Field.FIELD_STEPS, steps)
+        .build()
+      );
+      calorieDataSet.add(
+       DataPoint.builder(mCalorieDataSource)
+        .setTimeInterval(startTime, endTime, TimeUnit.MILLISECONDS)
+        .setField(Field.FIELD_CALORIES, calories)
+        .build()
+      );
+      if (distance > 0) {
+        distanceDataSet.add(
+         DataPoint.builder(mDistanceDataSource)
+          .setTimeInterval(startTime, endTime, TimeUnit.MILLISECONDS)
+          .setField(Field.FIELD_DISTANCE, distance)
+          .build()
+        );
+      }
+    });
+
+    // Then, invoke the History API to insert the data.
+    Log.i(TAG, "MultiData : Data Points inserting : " + stepDataSet.getDataPoints().size());
+
+    List<Task<Void>> insertTasks = new ArrayList<>(3);
+    for (DataSet dataSet : new DataSet[]{stepDataSet, calorieDataSet, distanceDataSet}) {
+      if (!dataSet.isEmpty()) {
+        insertTasks.add(insertDataSet(dataSet));
+      }
+    }
+    return Tasks.whenAll(insertTasks);
+  }
+
+  /*
+   * Hands every bin with steps to the consumer, start and end time are one bin apart.
+   * Kept apart from the DataPoint building, which needs Play Services, so the loop can be tested on the JVM.
+   */
+  static void forEachBinPoint(StepBinSeries stepsData, BinPointConsumer consumer) {
+    for (int i = 0, binCount = stepsData.size(); i < binCount; i++) {
+      int stepCountDelta = stepsData.getCount(i);
+      if (stepCountDelta <= 0) {
+        continue;
+      }
+
+      long startTime = stepsData.getTime(i);
+      consumer.accept(startTime, startTime + BIN_MILLIS, stepCountDelta, stepsData.getCalorie(i), stepsData.getDistance(i));
+    }
+  }
+
+  interface BinPointConsumer {
+    void accept(long startTime, long endTime, int steps, float calories, float distance);
+  }
+
+  private Task<Void> reconcile(StepBinSeries stepsData, long startTime, long endTime) {
+    if (stepsData.isEmpty()) {
+      return Tasks.forResult(null);
+    }
+
+    return readStepBins(startTime, endTime).continueWithTask(MoreExecutors.directExecutor(), task -> {
+      StepBinSeries existingBins = task.getResult();
+      // Points of bins Samsung Health no longer has, or duplicates of earlier inserts, only go with the whole span
+      if (hasUnmatchedPoints(stepsData, existingBins)) {
+        Log.i(TAG, "Reconcile : " + existingBins.size() + " points replaced by " + stepsData.size() + " bins");
+        return replaceSpan(stepsData, startTime, endTime);
+      }
+
+      StepBinSeries missingBins = getMissingBins(stepsData, existingBins);
+      Log.i(TAG, "Reconcile : " + missingBins.size() + " of " + stepsData.size() + " bins to insert");
+      if (missingBins.isEmpty()) {
+        return Tasks.forResult(null);
+      }
+
+      // A changed bin inserted next to its old point would be counted twice, the old points go first
+      List<Task<Void>> deleteTasks = new ArrayList<>();
+      for (long[] changedSpan : getChangedSpans(missingBins, existingBins)) {
+        deleteTasks.add(mHistoryClient.deleteData(new DataDeleteRequest.Builder()
+         .setTimeInterval(changedSpan[0], changedSpan[1], TimeUnit.MILLISECONDS)
+         .addDataSource(mStepDataSource)
+         .addDataSource(mCalorieDataSource)
+         .addDataSource(mDistanceDataSource)
+         .build()));
+      }
+      if (deleteTasks.isEmpty()) {
+        return insert(missingBins);
+      }
+      return Tasks.whenAll(deleteTasks).continueWithTask(MoreExecutors.directExecutor(), deleteTask -> {
+        if (!deleteTask.isSuccessful()) {
+          return deleteTask;
+        }
+        return insert(missingBins);
+      });
+    });
+  }
+
+  private Task<Void> replace(StepBinSeries stepsData, long startTime, long endTime) {
+    return readStepBins(startTime, endTime).continueWithTask(MoreExecutors.directExecutor(), readTask -> {
+      StepBinSeries existingBins = readTask.getResult();
+      // Duplicates left by earlier inserts make Fit hold more points than bins, those spans are replaced too
+      if (existingBins.size() == stepsData.size() && getMissingBins(stepsData, existingBins).isEmpty()) {
+        Log.i(TAG, "Replace : " + stepsData.size() + " bins already in Google Fit");
+        return Tasks.forResult(null);
+      }
+
+      Log.i(TAG, "Replace : " + existingBins.size() + " points replaced by " + stepsData.size() + " bins");
+      return replaceSpan(stepsData, startTime, endTime);
+    });
+  }
+
+  /*
+   * Deletes the step, calorie and distance points this app wrote in [startTime, endTime) and inserts the bins.
+   * Unlike REPLACE_DAY it does not look at the steps first, so it also completes a write whose step insert went
+   * through while the calorie or distance insert failed. Running it again leaves the same points in Fit.
+   */
+  public Task<Void> replaceSpan(StepBinSeries stepsData, long startTime, long endTime) {
+    DataDeleteRequest deleteRequest = new DataDeleteRequest.Builder()
+     .setTimeInterval(startTime, endTime, TimeUnit.MILLISECONDS)
+     .addDataSource(mStepDataSource)
+     .addDataSource(mCalorieDataSource)
+     .addDataSource(mDistanceDataSource)
+     .build();
+
+    return mHistoryClient.deleteData(deleteRequest).continueWithTask(MoreExecutors.directExecutor(), deleteTask -> {
+      if (!deleteTask.isSuccessful() || stepsData.isEmpty()) {
+        return deleteTask;
+      }
+      return insert(stepsData);
+    });
+  }
+
+  // Step bins this app already wrote to Google Fit in [startTime, endTime), sorted by time
+  public Task<StepBinSeries> readStepBins(long startTime, long endTime) {
+    DataReadRequest readRequest = new DataReadRequest.Builder()
+     .read(mStepDataSource)
+     .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
+     .build();
+
+    return mHistoryClient.readData(readRequest).continueWith(MoreExecutors.directExecutor(), task -> {
+      DataSet dataSet = task.getResult().getDataSet(mStepDataSource);
+      StepBinSeries existingBins = new StepBinSeries(Math.max(1, dataSet.getDataPoints().size()));
+      GoogleFitUtil.addBinData(dataSet, existingBins);
+      if (!existingBins.isSortedByTime()) {
+        existingBins.sortByTime();
+      }
+      return existingBins;
+    });
+  }
+
+  /*
+   * Hourly step totals this app wrote to Google Fit in [startTime, endTime), one bin per hour with steps.
+   * Aggregated by Fit, so a year is a few thousand buckets instead of every 10 minute point.
+   */
+  public Task<StepBinSeries> readHourlyStepTotals(long startTime, long endTime) {
+    DataReadRequest readRequest = new DataReadRequest.Builder()
+     .aggregate(mStepDataSource, DataType.AGGREGATE_STEP_COUNT_DELTA)
+     .bucketByTime(1, TimeUnit.HOURS)
+     .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
+     .build();
+
+    return mHistoryClient.readData(readRequest)
+     .continueWith(MoreExecutors.directExecutor(), task -> GoogleFitUtil.getBinDataFromResponse(task.getResult()));
+  }
+
+  /*
+   * Sorted merge of the bins with the bins already in Google Fit, both sorted by time.
+   * A bin is missing unless Google Fit has a point starting at the same time with the same step count.
+   */
+  private static StepBinSeries getMissingBins(StepBinSeries stepsData, StepBinSeries existingBins) {
+    StepBinSeries missingBins = new StepBinSeries(Math.max(1, stepsData.size()));
+    int j = 0;
+    for (int i = 0; i < stepsData.size(); i++) {
+      long binTime = stepsData.getTime(i);
+      while (j < existingBins.size() && existingBins.getTime(j) < binTime) {
+        j++;
+      }
+
+      boolean isPresent = false;
+      for (int k = j; k < existingBins.size() && existingBins.getTime(k) == binTime; k++) {
+        if (existingBins.getCount(k) == stepsData.getCount(i)) {
+          isPresent = true;
+          break;
+        }
+      }
+      if (!isPresent) {
+        missingBins.add(binTime, stepsData.getCount(i), stepsData.getCalorie(i), stepsData.getDistance(i));
+      }
+    }
+    return missingBins;
+  }
+
+  // True when Google Fit has a point at a time without a bin, or more than one point at the time of a bin
+  private static boolean hasUnmatchedPoints(StepBinSeries stepsData, StepBinSeries existingBins) {
+    int i = 0;
+    for (int j = 0; j < existingBins.size(); j++) {
+      long pointTime = existingBins.getTime(j);
+      if (j > 0 && existingBins.getTime(j - 1) == pointTime) {
+        return true;
+      }
+      while (i < stepsData.size() && stepsData.getTime(i) < pointTime) {
+        i++;
+      }
+      if (i >= stepsData.size() || stepsData.getTime(i) != pointTime) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /*
+   * Spans of the missing bins Google Fit already has a point for, merged where the bins are adjacent.
+   * Both series are sorted by time.
+   */
+  private static List<long[]> getChangedSpans(StepBinSeries missingBins, StepBinSeries existingBins) {
+    List<long[]> changedSpans = new ArrayList<>();
+    long[] currentSpan = null;
+    int j = 0;
+    for (int i = 0; i < missingBins.size(); i++) {
+      long binTime = missingBins.getTime(i);
+      while (j < existingBins.size() && existingBins.getTime(j) < binTime) {
+        j++;
+      }
+      if (j >= existingBins.size() || existingBins.getTime(j) != binTime) {
+        continue;
+      }
+
+      if (currentSpan != null && currentSpan[1] == binTime) {
+        currentSpan[1] = binTime + BIN_MILLIS;
+      } else {
+        currentSpan = new long[]{binTime, binTime + BIN_MILLIS};
+        changedSpans.add(currentSpan);
+      }
+    }
+    return changedSpans;
+  }
+
+  private Task<Void> insertDataSet(final DataSet dataSet) {
+    final String dataTypeName = dataSet.getDataType().getName();
+    return mHistoryClient.insertData(dataSet)
+     .addOnCompleteListener(task -> {
+       if (task.isSuccessful()) {
+         // At this point, the data has been inserted and can be read.
+         Log.i(TAG, dataTypeName + " MultiData : Insert was successful!");
+       } else {
+         Log.e(TAG, dataTypeName + " MultiData : There was a problem inserting the dataset.", task.getException());
+       }
+     });
+  }
+}
@@ -1,5 +1,6 @@
 package com.shealth2fit.util;
 
+import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
@@ -17,6 +18,9 @@ public class NotificationUtil {
 
   public static final String SYNC_WORKER_CHANNEL_ID = "Sync Service";
   private static final int SYNC_WORKER_NOTIFICATION_ID = 12987;
+  // Ongoing notifications of the foreground syncs, kept apart from the sync result notifications
+  public static final int SYNC_SERVICE_NOTIFICATION_ID = 12988;
+  public static final int BACKFILL_NOTIFICATION_ID = 12989;
 
 
   public static void createNotificationChannel(Context mContext) {
@@ -38,6 +42,27 @@ public class NotificationUtil {
     }
   }
 
+  // Ongoing notification with a progress bar, indeterminate while max is 0
+  public static Notification buildProgressNotification(Context mContext, String title, String content, int max, int progress) {
+    Intent targetIntent = new Intent(mContext, MainActivity.class);
+    PendingIntent contentIntent = PendingIntent.getActivity(mContext, 0, targetIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+    return new NotificationCompat.Builder(mContext, SYNC_WORKER_CHANNEL_ID)
+     .setSmallIcon(R.mipmap.ic_launcher)
+     .setContentTitle(title)
+     .setPriority(NotificationCompat.PRIORITY_LOW)
+     .setContentText(content)
+     .setProgress(max, progress, max == 0)
+     .setOnlyAlertOnce(true)
+     .setOngoing(true)
+     .setContentIntent(contentIntent)
+     .build();
+  }
+
+  public static void notify(Context mContext, int notificationId, Notification notification) {
+    NotificationManagerCompat.from(mContext).notify(notificationId, notification);
+  }
+
   public static void sendNotification(Context mContext, String title, String content, String channelId) {
     sendNotification(mContext, title, content, channelId, false);
   }
@@ -0,0 +1,110 @@
+package com.shealth2fit;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
+
+import static com.shealth2fit.StepCountReader.BIN_MILLIS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BinningDataDecoderTest {
+  private static final TimeZone BERLIN = TimeZone.getTimeZone("Europe/Berlin");
+  private static final long HOUR = 60 * 60 * 1000;
+  // UTC starts of the days, as Samsung Health stores them in day_time
+  private static final long REGULAR_DAY = 1560556800000L; // 2019-06-15
+  private static final long SPRING_FORWARD_DAY = 1553990400000L; // 2019-03-31, 23 hours in Berlin
+  private static final long FALL_BACK_DAY = 1572134400000L; // 2019-10-27, 25 hours in Berlin
+
+  @Test
+  public void decode_skipsEmptyBinsAndKeepsValues() throws IOException {
+    StepBinSeries binSeries = BinningDataDecoder.decode(blobWithCounts(0, 12, 0, 30), REGULAR_DAY, BERLIN);
+
+    assertEquals(2, binSeries.size());
+    assertEquals(12, binSeries.getCount(0));
+    assertEquals(0.5f, binSeries.getCalorie(0), 0);
+    assertEquals(1.25f, binSeries.getDistance(0), 0);
+    assertEquals(30, binSeries.getCount(1));
+  }
+
+  @Test
+  public void decode_emptyBlobHasNoBins() throws IOException {
+    assertTrue(BinningDataDecoder.decode(null, REGULAR_DAY, BERLIN).isEmpty());
+    assertTrue(BinningDataDecoder.decode(new byte[0], REGULAR_DAY, BERLIN).isEmpty());
+  }
+
+  @Test
+  public void decode_regularDayStartsBinsAtLocalMidnight() throws IOException {
+    StepBinSeries binSeries = BinningDataDecoder.decode(fullDayBlob(144), REGULAR_DAY, BERLIN);
+
+    // Midnight in Berlin is 22:00 UTC of the day before in summer
+    long localMidnight = REGULAR_DAY - 2 * HOUR;
+    assertEquals(144, binSeries.size());
+    for (int i = 0; i < binSeries.size(); i++) {
+      assertEquals(localMidnight + i * BIN_MILLIS, binSeries.getTime(i));
+    }
+  }
+
+  @Test
+  public void decode_springForwardDayKeepsWallClockTimes() throws IOException {
+    StepBinSeries binSeries = BinningDataDecoder.decode(fullDayBlob(144), SPRING_FORWARD_DAY, BERLIN);
+
+    // 00:00 CET, the last bin before the transition at 01:50 CET, and 03:00 CEST right after it
+    assertEquals(SPRING_FORWARD_DAY - HOUR, binSeries.getTime(0));
+    assertEquals(SPRING_FORWARD_DAY + 50 * 60 * 1000, binSeries.getTime(11));
+    assertEquals(SPRING_FORWARD_DAY + HOUR, binSeries.getTime(18));
+    // 23:50 CEST, the last bin of the day
+    assertEquals(SPRING_FORWARD_DAY + 21 * HOUR + 50 * 60 * 1000, binSeries.getTime(143));
+  }
+
+  @Test
+  public void decode_fallBackDayKeepsWallClockTimes() throws IOException {
+    StepBinSeries binSeries = BinningDataDecoder.decode(fullDayBlob(144), FALL_BACK_DAY, BERLIN);
+
+    // 00:00 CEST, then 03:00 CET after the transition
+    assertEquals(FALL_BACK_DAY - 2 * HOUR, binSeries.getTime(0));
+    assertEquals(FALL_BACK_DAY + 2 * HOUR, binSeries.getTime(18));
+    // 23:50 CET, the last bin of the day
+    assertEquals(FALL_BACK_DAY + 22 * HOUR + 50 * 60 * 1000, binSeries.getTime(143));
+  }
+
+  @Test
+  public void decode_fallBackDayMapsRepeatedHourToLaterOccurrence() throws IOException {
+    StepBinSeries binSeries = BinningDataDecoder.decode(fullDayBlob(144), FALL_BACK_DAY, BERLIN);
+
+    // 02:00 happens twice, the bin takes the one in CET at 01:00 UTC
+    assertEquals(FALL_BACK_DAY + HOUR, binSeries.getTime(12));
+    assertTrue(binSeries.isSortedByTime());
+  }
+
+  // A blob with one bin of steps in each 10 minutes
+  private static byte[] fullDayBlob(int binCount) throws IOException {
+    int[] counts = new int[binCount];
+    for (int i = 0; i < binCount; i++) {
+      counts[i] = i + 1;
+    }
+    return blobWithCounts(counts);
+  }
+
+  private static byte[] blobWithCounts(int... counts) throws IOException {
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < counts.length; i++) {
+      if (i > 0) {
+        json.append(',');
+      }
+      json.append("{\"count\":").append(counts[i])
+       .append(",\"calorie\":0.5,\"distance\":1.25,\"speed\":0.8}");
+    }
+    json.append(']');
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (GZIPOutputStream zip = new GZIPOutputStream(bytes)) {
+      zip.write(json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    return bytes.toByteArray();
+  }
+}
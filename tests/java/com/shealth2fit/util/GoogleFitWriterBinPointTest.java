@@ -0,0 +1,101 @@
+package com.shealth2fit.util;
+
+import com.shealth2fit.StepBinSeries;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.shealth2fit.StepCountReader.BIN_MILLIS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GoogleFitWriterBinPointTest {
+  private static final long HOUR = 60 * 60 * 1000;
+  private static final long FIRST_BIN_TIME = 1560549600000L; // 2019-06-15 00:00 in Berlin
+  // 2019-10-27 01:00 UTC, Berlin turns back from 03:00 CEST to 02:00 CET
+  private static final long FALL_BACK_TIME = 1572138000000L;
+
+  @Test
+  public void forEachBinPoint_skipsBinsWithoutSteps() {
+    StepBinSeries stepsData = new StepBinSeries();
+    stepsData.add(FIRST_BIN_TIME, 0, 0, 0);
+    stepsData.add(FIRST_BIN_TIME + BIN_MILLIS, 25, 1.5f, 20);
+    stepsData.add(FIRST_BIN_TIME + 2 * BIN_MILLIS, -3, 0, 0);
+    stepsData.add(FIRST_BIN_TIME + 3 * BIN_MILLIS, 40, 2.5f, 0);
+
+    List<long[]> points = collectPoints(stepsData);
+
+    assertEquals(2, points.size());
+    assertEquals(FIRST_BIN_TIME + BIN_MILLIS, points.get(0)[0]);
+    assertEquals(25, points.get(0)[2]);
+    assertEquals(FIRST_BIN_TIME + 3 * BIN_MILLIS, points.get(1)[0]);
+    assertEquals(40, points.get(1)[2]);
+  }
+
+  @Test
+  public void forEachBinPoint_emptySeriesHasNoPoints() {
+    assertTrue(collectPoints(new StepBinSeries()).isEmpty());
+  }
+
+  @Test
+  public void forEachBinPoint_passesCaloriesAndDistance() {
+    StepBinSeries stepsData = new StepBinSeries();
+    stepsData.add(FIRST_BIN_TIME, 25, 1.5f, 20.25f);
+    List<float[]> values = new ArrayList<>();
+
+    GoogleFitWriter.forEachBinPoint(stepsData,
+     (startTime, endTime, steps, calories, distance) -> values.add(new float[]{calories, distance}));
+
+    assertEquals(1, values.size());
+    assertEquals(1.5f, values.get(0)[0], 0);
+    assertEquals(20.25f, values.get(0)[1], 0);
+  }
+
+  @Test
+  public void forEachBinPoint_endsOneBinAfterStart() {
+    StepBinSeries stepsData = new StepBinSeries();
+    for (int i = 0; i < 144; i++) {
+      stepsData.add(FIRST_BIN_TIME + i * BIN_MILLIS, 1 + i, 0, 0);
+    }
+
+    List<long[]> points = collectPoints(stepsData);
+
+    assertEquals(144, points.size());
+    for (int i = 0; i < points.size(); i++) {
+      assertEquals(FIRST_BIN_TIME + i * BIN_MILLIS, points.get(i)[0]);
+      assertEquals(points.get(i)[0] + BIN_MILLIS, points.get(i)[1]);
+    }
+  }
+
+  @Test
+  public void forEachBinPoint_keepsInstantsAcrossDstTransition() {
+    // Bins of 02:00 to 02:50 in CEST and then again in CET, one after the other in real time
+    StepBinSeries stepsData = new StepBinSeries();
+    for (long binTime = FALL_BACK_TIME - HOUR; binTime < FALL_BACK_TIME + HOUR; binTime += BIN_MILLIS) {
+      stepsData.add(binTime, 10, 0, 0);
+    }
+
+    List<long[]> points = collectPoints(stepsData);
+
+    assertEquals(12, points.size());
+    assertEquals(FALL_BACK_TIME - HOUR, points.get(0)[0]);
+    assertEquals(FALL_BACK_TIME, points.get(6)[0]);
+    for (int i = 0; i < points.size(); i++) {
+      assertEquals(points.get(i)[0] + BIN_MILLIS, points.get(i)[1]);
+      if (i > 0) {
+        // Points meet without overlapping or leaving a gap at the transition
+        assertEquals(points.get(i - 1)[1], points.get(i)[0]);
+      }
+    }
+  }
+
+  // Start time, end time and steps of each point
+  private static List<long[]> collectPoints(StepBinSeries stepsData) {
+    List<long[]> points = new ArrayList<>();
+    GoogleFitWriter.forEachBinPoint(stepsData,
+     (startTime, endTime, steps, calories, distance) -> points.add(new long[]{startTime, endTime, steps}));
+    return points;
+  }
+}